@@ -0,0 +1,52 @@
+package minibase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper for implementing EvictionPolicies. Keeps the hit/miss counters so
+ * subclasses only have to deal with ordering the resident pages.
+ */
+public abstract class AbstractEvictionPolicy implements EvictionPolicy {
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+//    @Override
+    public void pageHit(PageId pageId) {
+        hits.incrementAndGet();
+        onHit(pageId);
+    }
+
+//    @Override
+    public void pageAdded(PageId pageId) {
+        misses.incrementAndGet();
+        onAdd(pageId);
+    }
+
+//    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+//    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+//    @Override
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+    }
+
+    /** Update the ordering after a hit on a resident page. */
+    protected abstract void onHit(PageId pageId);
+
+    /** Start tracking a page that has just been read into the pool. */
+    protected abstract void onAdd(PageId pageId);
+}
@@ -1,12 +1,16 @@
 package minibase;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -17,6 +21,52 @@ import java.util.concurrent.atomic.AtomicInteger;
  * The BufferPool is also responsible for locking; when a transaction fetches a
  * page, BufferPool checks that the transaction has the appropriate locks to
  * read/write the page.
+ * <p>
+ * Resident pages are kept in a lock-striped {@link PageTable}. Cache hits only
+ * take the monitor of their stripe, misses on different pages read from disk
+ * in parallel, and threads missing on the same page share a single read. The
+ * monitor of the BufferPool itself is only taken to write pages out.
+ * <p>
+ * An off-heap BufferPool keeps the bytes of its pages in a {@link FrameArena}
+ * of direct buffers allocated up front, and only holds up to
+ * {@link #MAX_DECODED_PAGES} pages (plus the pages being modified) as decoded
+ * objects on the heap, so that a cache of many gigabytes does not slow down
+ * garbage collection. Clean pages are decoded from their frame again when
+ * needed; dirty pages are copied back into their frame when they are flushed.
+ * <p>
+ * With {@link #setRecordLocking record-level locking}, getPage only takes an
+ * intention lock on the page, and the tuples read and written are locked by
+ * RecordId, so transactions writing different records of a page proceed
+ * concurrently. Writers latch the page (its monitor) while they change it. As
+ * a page may then hold changes of several running transactions, an aborting
+ * transaction does not restore the page's before-image but undoes its own
+ * inserts and deletes from an undo list kept here. Each insert and delete is
+ * logged as it is made, by an INSERT or DELETE record of its slot, and so is
+ * each undo of one, so flushing a page never logs the changes of one
+ * transaction under another, and after a crash recovery rolls back exactly
+ * the changes of the unfinished transactions.
+ * <p>
+ * Pages are written out whenever the pool needs room, even with changes of
+ * running transactions (STEAL), after the log records of those changes; a
+ * commit only logs the changes of its pages, which are written out later
+ * (NO-FORCE). A page that is not dirtied by a running transaction may thus
+ * still need to be written, see {@link Page#getRecoveryLsn}. The
+ * {@link LogFile} rolls back and recovers the pages from the log.
+ * <p>
+ * A transaction started with {@link #beginSnapshot} reads every page as of
+ * the last commit before it began, from the pages' committed images and the
+ * older versions kept in a {@link VersionStore}, without locking, so it
+ * neither waits for writers nor makes them wait. A read-only snapshot never
+ * enters the LockManager. One that writes runs under snapshot isolation: it
+ * write-locks the pages it writes, and aborts if one of them was committed
+ * since it began. Snapshots require page-level locking, as only then a page's
+ * before-image is its last committed image.
+ * <p>
+ * An optimistic transaction, started with {@link #beginOptimistic}, takes no
+ * locks while it runs either: it reads a snapshot and writes private copies of
+ * pages. {@link #validate} checks that nothing it read or wrote was committed
+ * in the meantime, then write-locks the pages it wrote, without waiting, and
+ * puts its copies in the pool to be committed.
  *
  * @Threadsafe, all fields are final
  */
@@ -31,24 +81,86 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Largest ring a sequential scan is given, see {@link #createScanRing}. */
+    public static final int MAX_SCAN_RING_PAGES = 32;
+
+    /**
+     * Number of clean pages an off-heap BufferPool keeps decoded before it
+     * starts dropping them.
+     */
+    public static final int MAX_DECODED_PAGES = 64;
+
     private final int maxPages;
     private final AtomicInteger currentPages;
 
-    private final Map<PageId, Page> pageIdToPages;
+    private final PageTable pageTable;
     private final Map<TransactionId, Set<PageId>> transactionsToDirtiedFlushedPages;
 
+    /** A change to undo when a transaction under record-level locking aborts. */
+    private static class UndoRecord {
+        final RecordId recordId;
+        /** The deleted tuple, or null if recordId was inserted. */
+        final Tuple deletedTuple;
+
+        UndoRecord(RecordId recordId, Tuple deletedTuple) {
+            this.recordId = recordId;
+            this.deletedTuple = deletedTuple;
+        }
+    }
+
+    private final ConcurrentMap<TransactionId, List<UndoRecord>> undoLists;
+    private volatile boolean recordLocking;
+
     private final LockManager lockManager;
+    private final VersionStore versionStore;
+    private final EvictionPolicy evictionPolicy;
+    private final ReadAhead readAhead;
+    private final EvictionPolicy.EvictionFilter notWriteLocked;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages and evicts the least
+     * recently used page when it is full.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LruEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy decides which page to evict when the pool is full.
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
+        this(numPages, evictionPolicy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy decides which page to evict when the pool is full.
+     * @param offHeap whether to keep pages in a {@link FrameArena} of direct
+     *          buffers rather than as objects on the heap
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap) {
         this.maxPages = numPages;
-        this.pageIdToPages = new HashMap<PageId, Page>();
-        this.transactionsToDirtiedFlushedPages = new HashMap<TransactionId, Set<PageId>>();
+        this.evictionPolicy = evictionPolicy;
+        this.readAhead = numPages >= ReadAhead.MIN_POOL_PAGES ? new ReadAhead(this) : null;
+        this.pageTable = new PageTable(PageTable.DEFAULT_STRIPES,
+                offHeap ? new FrameArena(numPages, PAGE_SIZE) : null);
+        this.transactionsToDirtiedFlushedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.undoLists = new ConcurrentHashMap<TransactionId, List<UndoRecord>>();
         this.lockManager = LockManager.create();
+        this.versionStore = new VersionStore();
+        this.notWriteLocked = new EvictionPolicy.EvictionFilter() {
+//            @Override
+            public boolean canEvict(PageId pageId) {
+                return !lockManager.isWriteLocked(pageId);
+            }
+        };
         currentPages = new AtomicInteger(0);
     }
 
@@ -56,6 +168,163 @@ public class BufferPool {
         return PAGE_SIZE;
     }
 
+    /**
+     * @return the eviction policy of this buffer pool, which also keeps its hit
+     *         and miss counters.
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return the read-ahead of this buffer pool, or null if it is too small
+     *         to read ahead
+     */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @return the lock manager of this buffer pool, e.g. to choose how it picks
+     *         deadlock victims.
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the store of the page versions read by snapshots. */
+    public VersionStore getVersionStore() {
+        return versionStore;
+    }
+
+    /**
+     * Start a read-only transaction that reads a snapshot of the database as of
+     * the last commit, without taking locks. End it with
+     * {@link #transactionComplete}.
+     *
+     * @throws IllegalStateException under record-level locking
+     */
+    public void beginSnapshot(TransactionId tid) {
+        beginSnapshot(tid, true);
+    }
+
+    /**
+     * Start a transaction that reads a snapshot of the database as of the last
+     * commit without taking read locks.
+     *
+     * @param readOnly false to let the transaction write under snapshot
+     *          isolation
+     * @throws IllegalStateException under record-level locking
+     */
+    public void beginSnapshot(TransactionId tid, boolean readOnly) {
+        if (recordLocking) {
+            throw new IllegalStateException("Snapshots require page-level locking.");
+        }
+        versionStore.beginSnapshot(tid, readOnly);
+    }
+
+    /**
+     * Start an optimistic transaction, which runs without locks and has to be
+     * validated before it commits.
+     *
+     * @throws IllegalStateException under record-level locking, or if the
+     *           pool is off-heap
+     */
+    public void beginOptimistic(TransactionId tid) {
+        if (recordLocking) {
+            throw new IllegalStateException("Optimistic transactions require page-level locking.");
+        }
+        if (isOffHeap()) {
+            // a replaced page is decoded again from its frame, which would
+            // lose the dirty copy
+            throw new IllegalStateException("Optimistic transactions require an on-heap pool.");
+        }
+        versionStore.beginOptimistic(tid);
+    }
+
+    /**
+     * Validate an optimistic transaction, which must be done before it
+     * commits: checks that no page it read or wrote was committed since it
+     * began, write-locks the pages it wrote without waiting, and replaces the
+     * resident pages with its copies of them.
+     *
+     * @throws TransactionAbortedException if the transaction conflicts with
+     *           another one, or the pool has no room for its pages; it must
+     *           then abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        Map<PageId, Page> privatePages = versionStore.getPrivatePages(tid);
+        for (PageId pageId : privatePages.keySet()) {
+            if (!lockManager.tryAcquireReadWriteLock(tid, pageId)) {
+                throw versionStore.validationFailed();
+            }
+        }
+        versionStore.validate(tid);
+        try {
+            for (Map.Entry<PageId, Page> entry : privatePages.entrySet()) {
+                installPrivatePage(entry.getKey(), entry.getValue());
+            }
+        } catch (DbException e) {
+            throw versionStore.validationFailed();
+        }
+    }
+
+    private void installPrivatePage(PageId pageId, Page page) throws DbException {
+        // a clean page may be evicted between reading it in and replacing it
+        while (pageTable.get(pageId) != page) {
+            fetchPage(pageId, null);
+            pageTable.replace(pageId, page);
+        }
+    }
+
+    /**
+     * @return whether the inserts and deletes of the transaction are logged as
+     *         it makes them, rather than as changes of pages when the pages
+     *         are flushed. They are not for an optimistic transaction, whose
+     *         private copies of pages another one may have committed over by
+     *         the time it aborts. Under record-level locking they always are,
+     *         since a page may hold changes of several running transactions.
+     */
+    public boolean logsTupleChanges(TransactionId tid) {
+        return !versionStore.isOptimistic(tid);
+    }
+
+    /** @return whether tuples are locked by RecordId rather than by page. */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Switch between page-level and record-level locking. Only switch while no
+     * transaction is running.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    /**
+     * Lock a record under record-level locking, blocking until the lock is
+     * granted.
+     */
+    public void acquireRecordLock(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquireRecordLock(tid, rid, perm);
+    }
+
+    /**
+     * Lock a record the transaction has just inserted, without waiting.
+     *
+     * @return false if another transaction still holds a lock on the slot
+     */
+    public boolean tryAcquireRecordLock(TransactionId tid, RecordId rid) {
+        return lockManager.tryAcquireRecordLock(tid, rid);
+    }
+
+    /** @return whether this buffer pool keeps its pages off the heap. */
+    public boolean isOffHeap() {
+        return pageTable.getArena() != null;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions. Will acquire a
      * lock and may block if that lock is held by another transaction.
@@ -74,20 +343,335 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws DbException,
             TransactionAbortedException {
-        lockManager.acquireLock(tid, pid, perm);
-        if (pageIdToPages.containsKey(pid)) {
-            return pageIdToPages.get(pid);
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+     * Permissions)}, but if the page has to be read from disk, recycle a frame
+     * of the given scan ring instead of evicting a page of the shared pool.
+     *
+     * @param scanRing the ring of the scan requesting the page, or null to use
+     *          the shared pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing scanRing)
+            throws DbException, TransactionAbortedException {
+        if (versionStore.isOptimistic(tid)) {
+            return getOptimisticPage(tid, pid, perm, scanRing);
         }
-        if (currentPages.get() == maxPages) {
-            evictPage();
+        if (versionStore.isSnapshot(tid)) {
+            return getSnapshotPage(tid, pid, perm, scanRing);
+        }
+        if (recordLocking) {
+            lockManager.acquireIntentionLock(tid, pid, perm);
+        } else {
+            lockManager.acquireLock(tid, pid, perm);
+        }
+        return fetchPage(pid, scanRing);
+    }
+
+    /**
+     * Returns the image of a page a snapshot reads: the committed image of the
+     * resident page, unless a transaction that committed after the snapshot
+     * began overwrote it. The image is a copy, which writers do not change.
+     * Pages the snapshot writes, and those it wrote before, are the resident
+     * pages themselves.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm, ScanRing scanRing)
+            throws DbException, TransactionAbortedException {
+        if (perm != Permissions.READ_ONLY) {
+            if (versionStore.isReadOnlySnapshot(tid)) {
+                throw new DbException("Snapshot " + tid.getId() + " is read-only.");
+            }
+            lockManager.acquireLock(tid, pid, perm);
+            versionStore.startWrite(tid, pid);
+            return fetchPage(pid, scanRing);
+        }
+        if (versionStore.isWritten(tid, pid)) {
+            return fetchPage(pid, scanRing);
+        }
+        return getSnapshotImage(tid, pid, scanRing);
+    }
+
+    private Page getSnapshotImage(TransactionId tid, PageId pid, ScanRing scanRing) throws DbException {
+        // in this order, see VersionStore
+        Page committedImage = fetchPage(pid, scanRing).getBeforeImage();
+        Page version = versionStore.getVersion(tid, pid);
+        return version != null ? version : committedImage;
+    }
+
+    /**
+     * Returns the page an optimistic transaction reads or writes: its private
+     * copy if it has written the page, the snapshot image if it reads it, and
+     * a new private copy of the snapshot image if it is about to write it.
+     */
+    private Page getOptimisticPage(TransactionId tid, PageId pid, Permissions perm, ScanRing scanRing)
+            throws DbException {
+        Page privatePage = versionStore.getPrivatePage(tid, pid);
+        if (privatePage != null) {
+            return privatePage;
+        }
+        Page image = getSnapshotImage(tid, pid, scanRing);
+        if (perm == Permissions.READ_ONLY) {
+            versionStore.addRead(tid, pid);
+            return image;
+        }
+        // versions are shared between snapshots, so copy the image; its
+        // before-image is its content
+        privatePage = image.getBeforeImage();
+        versionStore.putPrivatePage(tid, pid, privatePage);
+        return privatePage;
+    }
+
+    /** Returns the page from the pool, reading it in if it is not resident. */
+    private Page fetchPage(PageId pid, ScanRing scanRing) throws DbException {
+        if (readAhead != null) {
+            readAhead.pageRequested(pid, scanRing);
+        }
+        while (true) {
+            PageTable.Pin pin = pageTable.pin(pid);
+            try {
+                Page page = null;
+                if (pin.mustLoad) {
+                    page = loadPage(pin.frame, scanRing);
+                } else if (pin.frame.awaitLoaded()) {
+                    page = pageTable.page(pin.frame);
+                    if (page != null) {
+                        evictionPolicy.pageHit(pid);
+                    }
+                }
+                if (page != null) {
+                    return page;
+                }
+                // the thread we were waiting for failed to read the page, or it
+                // was discarded; try again, reading it ourselves if nobody else
+                // has started to.
+            } finally {
+                pin.frame.unpin();
+                trimDecodedPages();
+            }
+        }
+    }
+
+    /**
+     * Drops decoded pages of an off-heap pool beyond {@link #MAX_DECODED_PAGES}.
+     * A page a transaction holds a write lock on stays decoded even while it is
+     * clean, since the transaction may be about to modify it.
+     */
+    private void trimDecodedPages() {
+        if (!isOffHeap()) {
+            return;
+        }
+        pageTable.trimDecoded(MAX_DECODED_PAGES, notWriteLocked);
+    }
+
+    /**
+     * Reads the pages firstPageNumber to lastPageNumber of a table into the pool
+     * in the background, on behalf of {@link ReadAhead}. No lock is taken: the
+     * pages are only cached, and the transaction that later asks for one locks
+     * it in {@link #getPage}. Pages that are already resident are skipped, and
+     * every contiguous run of missing pages is read with a single call to
+     * {@link HeapFile#readPages}.
+     * <p>
+     * Pages are only read into frames recycled from the scan ring or into free
+     * frames; read-ahead never evicts, and stops as soon as the pool is full.
+     */
+    void prefetchPages(int tableId, int firstPageNumber, int lastPageNumber, ScanRing scanRing) {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<PageTable.Frame> run = new ArrayList<PageTable.Frame>();
+        for (int pageNumber = firstPageNumber; pageNumber <= lastPageNumber; pageNumber++) {
+            PageId pid = new HeapPageId(tableId, pageNumber);
+            PageTable.Pin pin = pageTable.pin(pid);
+            if (!pin.mustLoad) {
+                pin.frame.unpin();
+                readRun(dbFile, run);
+                continue;
+            }
+            boolean reserved;
+            try {
+                reserved = reserveFrame(pid, scanRing, false);
+            } catch (DbException e) {
+                reserved = false;
+            }
+            if (!reserved) {
+                pageTable.loadFailed(pin.frame);
+                pin.frame.unpin();
+                break;
+            }
+            run.add(pin.frame);
+        }
+        readRun(dbFile, run);
+    }
+
+    /**
+     * Reads the pages of a run of frames with consecutive page numbers that were
+     * created and reserved by {@link #prefetchPages}, then unpins them.
+     */
+    private void readRun(DbFile dbFile, List<PageTable.Frame> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        try {
+            if (isOffHeap()) {
+                for (PageTable.Frame frame : run) {
+                    readIntoArena(dbFile, frame);
+                }
+                return;
+            }
+            List<Page> pages;
+            // a subclass may override readPage, which the vectored read would
+            // bypass
+            if (dbFile.getClass() == HeapFile.class) {
+                pages = ((HeapFile) dbFile).readPages(run.get(0).getPageId().pageNumber(), run.size());
+            } else {
+                pages = new ArrayList<Page>(run.size());
+                for (PageTable.Frame frame : run) {
+                    pages.add(dbFile.readPage(frame.getPageId()));
+                }
+            }
+            for (int i = 0; i < run.size(); i++) {
+                installPage(run.get(i), pages.get(i));
+            }
+        } catch (RuntimeException e) {
+            for (PageTable.Frame frame : run) {
+                if (!frame.isLoaded()) {
+                    currentPages.decrementAndGet();
+                    pageTable.loadFailed(frame);
+                }
+            }
+            Debug.log("read-ahead failed: %s", e);
+        } finally {
+            for (PageTable.Frame frame : run) {
+                frame.unpin();
+            }
+            run.clear();
+        }
+    }
+
+    /**
+     * Reads the page of a frame that was just created in the page table, making
+     * room for it first. On failure the frame is dropped again so that threads
+     * waiting for it retry.
+     */
+    private Page loadPage(PageTable.Frame frame, ScanRing scanRing) throws DbException {
+        PageId pid = frame.getPageId();
+        try {
+            reserveFrame(pid, scanRing, true);
+        } catch (DbException e) {
+            pageTable.loadFailed(frame);
+            throw e;
+        }
+        try {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (isOffHeap()) {
+                readIntoArena(dbFile, frame);
+                return pageTable.page(frame);
+            }
+            Page page = dbFile.readPage(pid);
+            installPage(frame, page);
+            return page;
+        } catch (RuntimeException e) {
+            if (!frame.isLoaded()) {
+                currentPages.decrementAndGet();
+                pageTable.loadFailed(frame);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the bytes of the page of a frame into a free frame of the arena,
+     * without decoding them when the file can hand out raw pages.
+     */
+    private void readIntoArena(DbFile dbFile, PageTable.Frame frame) {
+        PageId pid = frame.getPageId();
+        FrameArena arena = pageTable.getArena();
+        int slot = arena.allocate();
+        if (slot < 0) {
+            throw new IllegalStateException("No free frame in the arena for " + pid + ".");
+        }
+        try {
+            ByteBuffer data = arena.frame(slot);
+            // a subclass may override readPage, which reading the raw page
+            // would bypass
+            if (dbFile.getClass() == HeapFile.class) {
+                ((HeapFile) dbFile).readPageData(pid.pageNumber(), data);
+            } else if (dbFile instanceof MappedHeapFile) {
+                data.put(((MappedHeapFile) dbFile).pageBuffer(pid.pageNumber()));
+            } else {
+                data.put(dbFile.readPage(pid).getPageData());
+            }
+        } catch (RuntimeException e) {
+            arena.release(slot);
+            throw e;
+        }
+        pageTable.loaded(frame, slot);
+        evictionPolicy.pageAdded(pid);
+    }
+
+    /**
+     * Makes room for a page that is about to be read: recycles the next frame of
+     * the scan ring if there is one, then evicts a page if the pool is still
+     * over capacity.
+     *
+     * @param mayEvict whether a page of the shared pool may be evicted to make
+     *          room
+     * @return true if room was made, false if the pool is full and mayEvict is
+     *         false
+     */
+    private boolean reserveFrame(PageId pid, ScanRing scanRing, boolean mayEvict) throws DbException {
+        if (scanRing != null) {
+            recycleScanRingFrame(scanRing, pid);
+        }
+        if (currentPages.incrementAndGet() > maxPages) {
+            if (!mayEvict) {
+                currentPages.decrementAndGet();
+                return false;
+            }
+            try {
+                evictPage();
+            } catch (DbException e) {
+                currentPages.decrementAndGet();
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    private void installPage(PageTable.Frame frame, Page page) {
+        pageTable.loaded(frame, page);
+        evictionPolicy.pageAdded(frame.getPageId());
+    }
+
+    /**
+     * Returns a scan ring for a sequential scan over a table with numPages
+     * pages, or null if the whole table fits in the shared pool. A table that
+     * does not fit cannot stay cached between scans anyway, so its scan gets a
+     * ring of an eighth of the pool, capped at {@link #MAX_SCAN_RING_PAGES}.
+     *
+     * @param numPages number of pages the scan is going to read
+     */
+    public ScanRing createScanRing(int numPages) {
+        if (numPages < maxPages) {
+            return null;
+        }
+        return new ScanRing(Math.max(2, Math.min(MAX_SCAN_RING_PAGES, maxPages / 8)));
+    }
+
+    /**
+     * Drops the page that occupies the next frame of the ring, so the page about
+     * to be read can take its place. Pages that were dirtied after the scan read
+     * them are left alone; the read then falls back to regular eviction.
+     */
+    private void recycleScanRingFrame(ScanRing scanRing, PageId incoming) {
+        PageId victim = scanRing.replaceNext(incoming);
+        if (victim == null || isDirty(victim)) {
+            return;
+        }
+        if (pageTable.removeIfUnpinned(victim)) {
+            currentPages.decrementAndGet();
+            evictionPolicy.pageRemoved(victim);
         }
-        int tableId = pid.getTableId();
-        Catalog catalog = Database.getCatalog();
-        DbFile dbFile = catalog.getDatabaseFile(tableId);
-        Page page = dbFile.readPage(pid);
-        pageIdToPages.put(pid, page);
-        currentPages.incrementAndGet();
-        return page;
     }
 
     /**
@@ -124,29 +708,77 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+        if (versionStore.isReadOnlySnapshot(tid)) {
+            versionStore.endSnapshot(tid);
+            return;
+        }
+        if (commit && versionStore.isOptimistic(tid) && !versionStore.isValidated(tid)) {
+            throw new IllegalStateException("Optimistic transaction " + tid.getId() + " was not validated.");
+        }
+        List<UndoRecord> undoList = undoLists.remove(tid);
+        if (undoList != null) {
+            // the pages may hold changes of other running transactions, so
+            // do not restore them by their dirtier
+            if (commit) {
+                for (PageId pageId : getPageIds(undoList)) {
+                    completePage(pageId, tid);
+                }
+            } else {
+                undo(tid, undoList);
+            }
+            transactionsToDirtiedFlushedPages.remove(tid);
+            Database.getLogFile().transactionCompleted(tid);
+            lockManager.releasePages(tid);
+            return;
+        }
         if (commit) {
             Set<PageId> dirtiedFlushedPages = transactionsToDirtiedFlushedPages.get(tid);
-            for (PageId pageId : pageIdToPages.keySet()) {
-                Page page = pageIdToPages.get(pageId);
-                if (tid.equals(page.isDirty())) {
-                    flushPage(pageId);
-                    // use current page contents as the before-image
-                    // for the next transaction that modifies this page.
-                    page.setBeforeImage();
+            List<Page> committedPages = new ArrayList<Page>();
+            for (PageId pageId : pageTable.pageIds()) {
+                Page page = pageTable.get(pageId);
+                if (page == null) {
+                    continue;
+                }
+                if (commitPage(page, tid)) {
+                    committedPages.add(page);
                 } else if (dirtiedFlushedPages != null && dirtiedFlushedPages.contains(pageId)) {
-                    page.setBeforeImage();
+                    committedPages.add(page);
                 }
             }
+            // snapshots that began before this commit must find the images
+            // overwritten by it before those stop being the committed ones
+            versionStore.commit(tid);
+            for (Page page : committedPages) {
+                // use current page contents as the before-image
+                // for the next transaction that modifies this page.
+                page.setBeforeImage();
+            }
         } else {
-            for (PageId pageId : pageIdToPages.keySet()) {
-                Page page = pageIdToPages.get(pageId);
-                if (tid.equals(page.isDirty())) {
-                    pageIdToPages.put(pageId, page.getBeforeImage());
+            versionStore.abort(tid);
+            // the logged changes are rolled back with CLRs, unless the log
+            // aborted the transaction already; the pages are written out with
+            // the LSNs of the CLRs and dropped, as restoring before-images
+            // would take their page LSNs back below the aborted changes
+            Database.getLogFile().rollback(tid);
+            for (PageId pageId : pageTable.pageIds()) {
+                Page page = pageTable.get(pageId);
+                if (page != null && tid.equals(page.isDirty())) {
+                    Page beforeImage = page.getBeforeImage();
+                    pageTable.replace(pageId, beforeImage);
                     page.markDirty(false, null);
+                    if (page.getRecoveryLsn() >= 0) {
+                        // the before-image may hold committed changes that
+                        // are not on disk, and the disk changes of this one
+                        Database.getLogFile().flushUpTo(page.getLsn());
+                        Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforeImage);
+                        pageTable.writeBack(beforeImage);
+                    }
                 }
             }
         }
         transactionsToDirtiedFlushedPages.remove(tid);
+        Database.getLogFile().transactionCompleted(tid);
+        versionStore.endSnapshot(tid);
         lockManager.releasePages(tid);
         // if commit, flush dirty pages associated with transaction
         // if !commit, restore dirty pages associated with transaction to previous
@@ -154,6 +786,134 @@ public class BufferPool {
         // release all locks (and other state? don't think there is any)
     }
 
+    /**
+     * Logs the changes of a page the transaction dirtied that were not logged
+     * as they were made, and marks it clean, storing the image it had at the
+     * last commit for snapshots. The page is written out later.
+     *
+     * @return false if the transaction did not dirty the page
+     */
+    private boolean commitPage(Page page, TransactionId tid) throws IOException {
+        synchronized (page) {
+            if (!tid.equals(page.isDirty())) {
+                return false;
+            }
+            if (!recordLocking) {
+                versionStore.addVersion(tid, page.getId(), page.getBeforeImage());
+            }
+            logChanges(page, tid);
+            page.markDirty(false, null);
+            return true;
+        }
+    }
+
+    /**
+     * Marks a page under record-level locking clean when a transaction that
+     * changed it completes, if the transaction dirtied it last. Its changes
+     * were logged as they were made; the page is written out later.
+     */
+    private void completePage(PageId pageId, TransactionId tid) {
+        Page page = pageTable.get(pageId);
+        if (page != null) {
+            synchronized (page) {
+                if (tid.equals(page.isDirty())) {
+                    page.markDirty(false, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes that were not logged as they were made are logged by an update
+     * record, with the bytes they changed. Called under the page's latch.
+     */
+    private static void logChanges(Page page, TransactionId tid) throws IOException {
+        if (page.hasUnloggedChanges()) {
+            Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+        }
+    }
+
+    private static Set<PageId> getPageIds(List<UndoRecord> undoList) {
+        Set<PageId> pageIds = new LinkedHashSet<PageId>();
+        synchronized (undoList) {
+            for (UndoRecord undoRecord : undoList) {
+                pageIds.add(undoRecord.recordId.getPageId());
+            }
+        }
+        return pageIds;
+    }
+
+    /**
+     * Undo the inserts and deletes of an aborting transaction under
+     * record-level locking, latest first. A deleted tuple goes back to its
+     * old slot, keeping its RecordId. Each compensation is
+     * logged as a change of the transaction, so that rolling it back in the
+     * log after a crash undoes the compensations as well.
+     */
+    private void undo(TransactionId tid, List<UndoRecord> undoList) throws IOException {
+        Set<PageId> undonePageIds = new LinkedHashSet<PageId>();
+        try {
+            for (int i = undoList.size() - 1; i >= 0; i--) {
+                UndoRecord undoRecord = undoList.get(i);
+                HeapPage page = (HeapPage) getPage(tid, undoRecord.recordId.getPageId(), Permissions.READ_WRITE);
+                synchronized (page) {
+                    if (undoRecord.deletedTuple == null) {
+                        page.deleteTuple(tid, page.getTuple(undoRecord.recordId.tupleno()));
+                    } else {
+                        // the transaction still holds the lock on the old
+                        // slot, so no other one has taken it
+                        page.insertTuple(tid, undoRecord.deletedTuple, undoRecord.recordId.tupleno());
+                    }
+                    page.markDirty(true, tid);
+                }
+                undonePageIds.add(page.getId());
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        }
+        for (PageId pageId : undonePageIds) {
+            completePage(pageId, tid);
+        }
+    }
+
+    /**
+     * Undo the inserts and deletes of an aborting transaction under
+     * record-level locking on the resident pages, before its abort record is
+     * logged. The log is not rolled back for it then: that would write out
+     * and discard pages other running transactions are changing. The
+     * transaction keeps its locks until it completes.
+     *
+     * @return false if the transaction changed no records under record-level
+     *         locking
+     */
+    public boolean undoRecordChanges(TransactionId tid) throws IOException {
+        List<UndoRecord> undoList = undoLists.get(tid);
+        if (undoList == null) {
+            return false;
+        }
+        undo(tid, undoList);
+        synchronized (undoList) {
+            undoList.clear();
+        }
+        return true;
+    }
+
+    private void addUndoRecord(TransactionId tid, UndoRecord undoRecord) {
+        List<UndoRecord> undoList = undoLists.get(tid);
+        if (undoList == null) {
+            List<UndoRecord> newList = new ArrayList<UndoRecord>();
+            undoList = undoLists.putIfAbsent(tid, newList);
+            if (undoList == null) {
+                undoList = newList;
+            }
+        }
+        synchronized (undoList) {
+            undoList.add(undoRecord);
+        }
+    }
+
     /**
      * Add a tuple to the specified table behalf of transaction tid. Will acquire
      * a write lock on the page the tuple is added to(Lock acquisition is not
@@ -169,11 +929,14 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t) throws DbException, IOException,
             TransactionAbortedException {
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> dirtiedPages = heapFile.insertTuple(tid, t);
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> dirtiedPages = dbFile.insertTuple(tid, t);
         for (Page dirtiedPage : dirtiedPages) {
             dirtiedPage.markDirty(true, tid);
         }
+        if (recordLocking) {
+            addUndoRecord(tid, new UndoRecord(t.getRecordId(), null));
+        }
     }
 
     /**
@@ -191,43 +954,58 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(
                 t.getRecordId().getPageId().getTableId());
-        Page dirtiedPage = heapFile.deleteTuple(tid, t);
+        RecordId recordId = t.getRecordId();
+        Page dirtiedPage = dbFile.deleteTuple(tid, t);
         dirtiedPage.markDirty(true, tid);
+        if (recordLocking) {
+            addUndoRecord(tid, new UndoRecord(recordId, t));
+        }
     }
 
     /**
-     * Flush all dirty pages to disk. NB: Be careful using this routine -- it
-     * writes dirty data to disk so will break simpledb if running in NO STEAL
-     * mode.
+     * Flush all dirty pages to disk, including changes of running
+     * transactions, after their log records.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (PageId pageId : pageIdToPages.keySet()) {
+        for (PageId pageId : pageTable.pageIds()) {
             flushPage(pageId);
         }
     }
 
+    /**
+     * Write out the pages that hold committed changes only, which the disk
+     * may lack, leaving pages of running transactions alone.
+     */
+    public synchronized void flushCommittedPages() throws IOException {
+        for (PageId pageId : pageTable.pageIds()) {
+            Page page = pageTable.get(pageId);
+            if (page != null && page.isDirty() == null) {
+                flushPage(pageId);
+            }
+        }
+    }
+
     /**
      * Remove the specific page id from the buffer pool. Needed by the recovery
      * manager to ensure that the buffer pool doesn't keep a rolled back page in
      * its cache.
      */
-    public synchronized void discardPage(PageId pageId) {
-        if (pageIdToPages.containsKey(pageId)) {
-            pageIdToPages.remove(pageId);
+    public void discardPage(PageId pageId) {
+        if (pageTable.remove(pageId)) {
             currentPages.decrementAndGet();
+            evictionPolicy.pageRemoved(pageId);
         }
     }
 
     private void addDirtiedFlushedPage(TransactionId dirtier, PageId pageId) {
-        if (transactionsToDirtiedFlushedPages.containsKey(dirtier)) {
-            transactionsToDirtiedFlushedPages.get(dirtier).add(pageId);
-        } else {
-            Set<PageId> dirtiedFlushedPages = new HashSet<PageId>();
-            dirtiedFlushedPages.add(pageId);
+        Set<PageId> dirtiedFlushedPages = transactionsToDirtiedFlushedPages.get(dirtier);
+        if (dirtiedFlushedPages == null) {
+            dirtiedFlushedPages = new HashSet<PageId>();
             transactionsToDirtiedFlushedPages.put(dirtier, dirtiedFlushedPages);
         }
+        dirtiedFlushedPages.add(pageId);
     }
 
     /**
@@ -236,61 +1014,145 @@ public class BufferPool {
      * @param pageId an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pageId) throws IOException {
-        if (pageIdToPages.containsKey(pageId)) {
-            Page page = pageIdToPages.get(pageId);
-            // append an update record to the log, with
-            // a before-image and after-image.
-            TransactionId dirtier = page.isDirty();
-            if (dirtier != null) {
-                addDirtiedFlushedPage(dirtier, pageId);
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+        Page page = pageTable.get(pageId);
+        if (page != null) {
+            // latch the page, which transactions under record-level locking
+            // may be writing records of
+            synchronized (page) {
+                if (!needsWrite(page)) {
+                    return;
+                }
+                TransactionId dirtier = page.isDirty();
+                if (dirtier != null) {
+                    addDirtiedFlushedPage(dirtier, pageId);
+                    if (!recordLocking) {
+                        versionStore.addVersion(dirtier, pageId, page.getBeforeImage());
+                    }
+                }
+                logChanges(page, dirtier);
+                // write-ahead: the records of the changes go first
+                if (page.getRecoveryLsn() >= 0) {
+                    Database.getLogFile().flushUpTo(page.getLsn());
+                }
                 Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(page);
+                pageTable.writeBack(page);
+                page.markWritten();
                 page.markDirty(false, null);
             }
         }
     }
 
+    /**
+     * Log the changes of all pages of the specified transaction that were not
+     * logged as they were made, without writing the pages, so that its commit
+     * record follows them.
+     */
+    public synchronized void logPages(TransactionId tid) throws IOException {
+        for (PageId pageId : pageTable.pageIds()) {
+            Page page = pageTable.get(pageId);
+            if (page != null) {
+                synchronized (page) {
+                    if (tid.equals(page.isDirty())) {
+                        logChanges(page, tid);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Write all pages of the specified transaction to disk.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        for (PageId pageId : pageIdToPages.keySet()) {
-            Page page = pageIdToPages.get(pageId);
-            if (page.isDirty() == tid) {
+        for (PageId pageId : pageTable.pageIds()) {
+            Page page = pageTable.get(pageId);
+            if (page != null && page.isDirty() == tid) {
+                flushPage(pageId);
+            }
+        }
+        List<UndoRecord> undoList = undoLists.get(tid);
+        if (undoList != null) {
+            for (PageId pageId : getPageIds(undoList)) {
                 flushPage(pageId);
             }
         }
     }
 
+    /**
+     * @return whether the page differs from the page on disk: it is dirtied by
+     *         a running transaction, or holds logged changes not written yet
+     */
+    static boolean needsWrite(Page page) {
+        return page.isDirty() != null || page.getRecoveryLsn() >= 0;
+    }
+
     private boolean isDirty(PageId pageId) {
-        return pageIdToPages.get(pageId).isDirty() != null;
+        Page page = pageTable.get(pageId);
+        return page != null && needsWrite(page);
     }
 
     /**
-     * Discards a page from the buffer pool. Flushes the page to disk to ensure
-     * dirty pages are updated on disk.
+     * @return the page if it is in the buffer pool, without locking it or
+     *         reading it in; for the recovery manager
      */
-    private synchronized void evictPage() throws DbException {
-        Iterator<PageId> pageIdIterator = pageIdToPages.keySet().iterator();
-        PageId pageId = null;
-        while (pageIdIterator.hasNext()) {
-            pageId = pageIdIterator.next();
-            if (!isDirty(pageId)) {
-                break;
+    Page getResidentPage(PageId pageId) {
+        return pageTable.get(pageId);
+    }
+
+    /**
+     * @return the pages that hold logged changes not written to disk yet, with
+     *         the LSN of the first of those changes
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+        for (PageId pageId : pageTable.pageIds()) {
+            Page page = pageTable.get(pageId);
+            if (page != null && page.getRecoveryLsn() >= 0) {
+                dirtyPages.put(pageId, page.getRecoveryLsn());
             }
         }
-        if (pageId == null || isDirty(pageId)) {
-            throw new DbException("All pages in BufferPool are dirty and therefore none can be evicted.");
-        }
-        try {
-            flushPage(pageId);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new DbException("IOException while flushing page during eviction.");
+        return dirtyPages;
+    }
+
+    /**
+     * Discards a page from the buffer pool to make room for the frame the caller
+     * has already reserved. Clean, unpinned pages are evicted first; if there
+     * are none, an unpinned dirty page is written out and evicted, changes of
+     * running transactions included. If the chosen victim is pinned or
+     * dirtied before it can be removed, another one is chosen.
+     */
+    private void evictPage() throws DbException {
+        EvictionPolicy.EvictionFilter clean = new EvictionPolicy.EvictionFilter() {
+//            @Override
+            public boolean canEvict(PageId pageId) {
+                return !isDirty(pageId) && pageTable.getPinCount(pageId) == 0;
+            }
+        };
+        EvictionPolicy.EvictionFilter unpinned = new EvictionPolicy.EvictionFilter() {
+//            @Override
+            public boolean canEvict(PageId pageId) {
+                return pageTable.getPinCount(pageId) == 0;
+            }
+        };
+        while (true) {
+            PageId pageId = evictionPolicy.chooseVictim(clean);
+            if (pageId == null) {
+                pageId = evictionPolicy.chooseVictim(unpinned);
+                if (pageId == null) {
+                    throw new DbException("All pages in BufferPool are pinned and therefore none can be evicted.");
+                }
+                try {
+                    flushPage(pageId);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (!isDirty(pageId) && pageTable.removeIfUnpinned(pageId)) {
+                currentPages.decrementAndGet();
+                evictionPolicy.pageRemoved(pageId);
+                return;
+            }
         }
-        pageIdToPages.remove(pageId);
-        currentPages.decrementAndGet();
     }
 
 }
\ No newline at end of file
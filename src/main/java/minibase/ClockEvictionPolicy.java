@@ -0,0 +1,94 @@
+package minibase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CLOCK (second chance) approximation of LRU. Pages sit on a circular list of
+ * slots with a reference bit each; a hit only sets the bit, and the clock hand
+ * clears bits as it sweeps until it finds a page whose bit is already clear.
+ * <p>
+ * Setting the bit takes no lock, so with this policy a BufferPool hit never
+ * waits on another thread's eviction.
+ */
+public class ClockEvictionPolicy extends AbstractEvictionPolicy {
+
+    private final List<PageId> slots;
+    private final Map<PageId, Integer> pageIdToSlot;
+    private final ConcurrentMap<PageId, AtomicBoolean> referenced;
+    private final LinkedList<Integer> freeSlots;
+    private int hand;
+
+    public ClockEvictionPolicy() {
+        this.slots = new ArrayList<PageId>();
+        this.pageIdToSlot = new HashMap<PageId, Integer>();
+        this.referenced = new ConcurrentHashMap<PageId, AtomicBoolean>();
+        this.freeSlots = new LinkedList<Integer>();
+        this.hand = 0;
+    }
+
+    @Override
+    protected void onHit(PageId pageId) {
+        AtomicBoolean bit = referenced.get(pageId);
+        if (bit != null) {
+            bit.set(true);
+        }
+    }
+
+    @Override
+    protected synchronized void onAdd(PageId pageId) {
+        if (pageIdToSlot.containsKey(pageId)) {
+            referenced.get(pageId).set(true);
+            return;
+        }
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(pageId);
+        } else {
+            slot = freeSlots.removeFirst();
+            slots.set(slot, pageId);
+        }
+        pageIdToSlot.put(pageId, slot);
+        // a newly loaded page starts with its bit clear, so a page that is read
+        // once is the first to go.
+        referenced.put(pageId, new AtomicBoolean(false));
+    }
+
+//    @Override
+    public synchronized void pageRemoved(PageId pageId) {
+        Integer slot = pageIdToSlot.remove(pageId);
+        if (slot != null) {
+            slots.set(slot, null);
+            referenced.remove(pageId);
+            freeSlots.add(slot);
+        }
+    }
+
+//    @Override
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        int numberOfSlots = slots.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * numberOfSlots; i++) {
+            int slot = hand;
+            hand = (hand + 1) % numberOfSlots;
+            PageId pageId = slots.get(slot);
+            if (pageId == null) {
+                continue;
+            }
+            if (referenced.get(pageId).getAndSet(false)) {
+                continue;
+            }
+            if (filter.canEvict(pageId)) {
+                return pageId;
+            }
+        }
+        return null;
+    }
+}
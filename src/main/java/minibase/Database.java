@@ -56,11 +56,38 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool with
+     * the given eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy evictionPolicy) {
+        return resetBufferPool(new BufferPool(pages, evictionPolicy));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool with
+     * the given eviction policy, keeping its pages off the heap if offHeap is
+     * set, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy evictionPolicy, boolean offHeap) {
+        return resetBufferPool(new BufferPool(pages, evictionPolicy, offHeap));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF = null;
+        try {
+            // committed changes may not be on disk yet
+            _instance.get()._bufferpool.flushCommittedPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
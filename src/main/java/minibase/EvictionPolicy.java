@@ -0,0 +1,60 @@
+package minibase;
+
+/**
+ * EvictionPolicy decides which page the BufferPool gives up when it runs out
+ * of frames. The BufferPool reports every hit, every page it admits after a
+ * miss and every page it drops; the policy keeps whatever bookkeeping it needs
+ * to rank the resident pages and answers {@link #chooseVictim} with the page it
+ * would rather lose.
+ * <p>
+ * Every policy also counts hits and misses so that different policies can be
+ * compared on the same workload.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Filter used by the BufferPool to veto victims it cannot drop, e.g. pages
+     * that are pinned, or dirty pages while clean ones are left.
+     */
+    public interface EvictionFilter {
+        public boolean canEvict(PageId pageId);
+    }
+
+    /**
+     * Record that a resident page was requested.
+     */
+    public void pageHit(PageId pageId);
+
+    /**
+     * Record that a page was missing from the pool and has now been read into
+     * it.
+     */
+    public void pageAdded(PageId pageId);
+
+    /**
+     * Record that a page left the pool, either because it was evicted or
+     * because it was discarded.
+     */
+    public void pageRemoved(PageId pageId);
+
+    /**
+     * Pick the page that should be evicted next. The page is not removed from
+     * the policy; the BufferPool calls {@link #pageRemoved} once it has actually
+     * dropped it.
+     *
+     * @param filter vetoes pages that cannot be evicted right now
+     * @return the victim, or null if every resident page was vetoed
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /** @return the number of requests served from the pool */
+    public long getHitCount();
+
+    /** @return the number of requests that had to read the page from disk */
+    public long getMissCount();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStatistics();
+}
@@ -26,11 +26,28 @@ public class Filter extends Operator {
         return child.getTupleDesc();
     }
 
+    /**
+     * Opens the child, first pushing the predicate down into the sequential
+     * scan at the bottom of a chain of filters, if there is one, so that the
+     * scan does not build tuples the predicate rejects. Tuples are still
+     * checked here, which is cheap for the ones that were already filtered.
+     */
     public void open()
             throws DbException, NoSuchElementException, TransactionAbortedException {
+        pushDown(child, predicate);
         child.open();
     }
 
+    private static boolean pushDown(DbIterator iterator, Predicate predicate) {
+        if (iterator instanceof SeqScan) {
+            return ((SeqScan) iterator).pushDown(predicate);
+        }
+        if (iterator instanceof Filter) {
+            return pushDown(((Filter) iterator).child, predicate);
+        }
+        return false;
+    }
+
     public void close() {
         super.close();
         child.close();
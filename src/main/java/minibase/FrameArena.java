@@ -0,0 +1,92 @@
+package minibase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is a fixed set of page-sized frames carved out of direct
+ * ByteBuffers that are allocated once, when the arena is created. An off-heap
+ * {@link BufferPool} keeps the bytes of its resident pages here, so the Java
+ * heap only holds the few pages that are decoded at any time and the size of
+ * the cache does not show up in GC pauses.
+ * <p>
+ * A direct ByteBuffer holds at most 2 GB, so frames are spread over slabs of
+ * at most {@link #MAX_SLAB_SIZE} bytes. Frames are identified by their slot
+ * number; free slots are kept on a stack of ints so that the free list itself
+ * allocates nothing.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** Largest direct buffer allocated for frames, 1 GB. */
+    public static final int MAX_SLAB_SIZE = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerSlab;
+    private final ByteBuffer[] slabs;
+    private final int[] freeSlots;
+    private int numberOfFreeSlots;
+
+    /**
+     * @param numberOfFrames number of pages the arena holds
+     * @param frameSize bytes per page
+     */
+    public FrameArena(int numberOfFrames, int frameSize) {
+        if (numberOfFrames < 1) {
+            throw new IllegalArgumentException("A FrameArena needs at least one frame.");
+        }
+        this.frameSize = frameSize;
+        this.framesPerSlab = MAX_SLAB_SIZE / frameSize;
+        int numberOfSlabs = (numberOfFrames + framesPerSlab - 1) / framesPerSlab;
+        this.slabs = new ByteBuffer[numberOfSlabs];
+        for (int i = 0; i < numberOfSlabs; i++) {
+            int framesInSlab = Math.min(framesPerSlab, numberOfFrames - i * framesPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(framesInSlab * frameSize);
+        }
+        this.freeSlots = new int[numberOfFrames];
+        // hand out low slots first
+        for (int i = 0; i < numberOfFrames; i++) {
+            freeSlots[i] = numberOfFrames - 1 - i;
+        }
+        this.numberOfFreeSlots = numberOfFrames;
+    }
+
+    public int getNumberOfFrames() {
+        return freeSlots.length;
+    }
+
+    public synchronized int getNumberOfFreeFrames() {
+        return numberOfFreeSlots;
+    }
+
+    /**
+     * @return the slot of a free frame, or -1 if all frames are in use
+     */
+    public synchronized int allocate() {
+        if (numberOfFreeSlots == 0) {
+            return -1;
+        }
+        return freeSlots[--numberOfFreeSlots];
+    }
+
+    /** Return a frame obtained from {@link #allocate} to the arena. */
+    public synchronized void release(int slot) {
+        if (numberOfFreeSlots == freeSlots.length) {
+            throw new IllegalStateException("Frame " + slot + " released twice.");
+        }
+        freeSlots[numberOfFreeSlots++] = slot;
+    }
+
+    /**
+     * @return a buffer over the bytes of the given frame, with position 0 and
+     *         limit equal to the page size. The buffer shares its content with
+     *         the arena.
+     */
+    public ByteBuffer frame(int slot) {
+        ByteBuffer frame = slabs[slot / framesPerSlab].duplicate();
+        int position = (slot % framesPerSlab) * frameSize;
+        frame.position(position);
+        frame.limit(position + frameSize);
+        return frame.slice();
+    }
+}
@@ -0,0 +1,162 @@
+package minibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many free tuple slots each page of a HeapFile has,
+ * so that an insert can go straight to a page with room instead of reading
+ * every page of the table to find one.
+ * <p>
+ * The map is kept in a sidecar file next to the heap file (the heap file's
+ * name with {@link #SUFFIX} appended) holding one two-byte count per page.
+ * The counts are updated in memory as pages are written, and the whole map is
+ * stored with each checkpoint of the log, so writing a page costs no second
+ * write. Like PostgreSQL's free space map it is only a hint: counts of pages
+ * modified by a transaction that later aborted, of pages written since the
+ * last checkpoint, or of a heap file changed behind the map's back, may be
+ * off, so an
+ * insert always checks the page itself and corrects the map if the page turns
+ * out to be full. Pages the map knows nothing about, e.g. those of a file
+ * created by {@link HeapFileEncoder}, are assumed to have room until they
+ * are looked at.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    public static final String SUFFIX = ".fsm";
+
+    /** Count of a page the map has no information about. */
+    public static final int UNKNOWN = -1;
+
+    private static final int ENTRY_SIZE = 2;
+
+    private final File file;
+    private int[] freeSlots;
+    private int numberOfPages;
+    /** Whether the map changed since it was last stored. */
+    private boolean changed;
+    /** Pages that may have free slots: a positive or an unknown count. */
+    private final BitSet candidates;
+
+    /**
+     * Loads the map of a heap file, if it has one.
+     *
+     * @param heapFile the file of the table
+     * @param numberOfPages number of pages the table has
+     */
+    public FreeSpaceMap(File heapFile, int numberOfPages) {
+        this.file = getSidecarFile(heapFile);
+        this.freeSlots = new int[Math.max(16, numberOfPages)];
+        this.candidates = new BitSet();
+        Arrays.fill(freeSlots, UNKNOWN);
+        this.numberOfPages = numberOfPages;
+        if (file.exists()) {
+            load();
+        }
+        for (int i = 0; i < numberOfPages; i++) {
+            candidates.set(i, freeSlots[i] != 0);
+        }
+    }
+
+    /**
+     * @return the sidecar file the map of the given heap file is kept in; it
+     *         goes wherever the heap file goes, e.g. when that is deleted
+     */
+    public static File getSidecarFile(File heapFile) {
+        return new File(heapFile.getPath() + SUFFIX);
+    }
+
+    private void load() {
+        try {
+            RandomAccessFile accessFile = new RandomAccessFile(file, "r");
+            try {
+                int entries = (int) Math.min(accessFile.length() / ENTRY_SIZE, numberOfPages);
+                ByteBuffer buffer = ByteBuffer.allocate(entries * ENTRY_SIZE);
+                accessFile.getChannel().read(buffer, 0);
+                buffer.flip();
+                for (int i = 0; i < entries && buffer.remaining() >= ENTRY_SIZE; i++) {
+                    freeSlots[i] = buffer.getShort();
+                }
+            } finally {
+                accessFile.close();
+            }
+        } catch (IOException e) {
+            // the map is only a hint; start over without it
+            Debug.log("could not read free space map %s: %s", file, e);
+            Arrays.fill(freeSlots, UNKNOWN);
+        }
+    }
+
+    /**
+     * @return the number of a page that should have a free slot, or -1 if no
+     *         page is known to have one.
+     */
+    public synchronized int findPageWithFreeSlot() {
+        int pageNumber = candidates.nextSetBit(0);
+        return pageNumber < numberOfPages ? pageNumber : -1;
+    }
+
+    /**
+     * @return the recorded number of free slots of the page, or
+     *         {@link #UNKNOWN}
+     */
+    public synchronized int getFreeSlots(int pageNumber) {
+        return pageNumber < numberOfPages ? freeSlots[pageNumber] : UNKNOWN;
+    }
+
+    /**
+     * Record the number of free slots of a page in memory, growing the map if
+     * the page is new.
+     */
+    public synchronized void update(int pageNumber, int numberOfFreeSlots) {
+        if (pageNumber >= freeSlots.length) {
+            int oldLength = freeSlots.length;
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(pageNumber + 1, 2 * oldLength));
+            Arrays.fill(freeSlots, oldLength, freeSlots.length, UNKNOWN);
+        }
+        for (int i = numberOfPages; i < pageNumber; i++) {
+            candidates.set(i, freeSlots[i] != 0);
+        }
+        if (pageNumber >= numberOfPages) {
+            numberOfPages = pageNumber + 1;
+            changed = true;
+        }
+        if (freeSlots[pageNumber] != numberOfFreeSlots) {
+            freeSlots[pageNumber] = numberOfFreeSlots;
+            changed = true;
+        }
+        candidates.set(pageNumber, numberOfFreeSlots != 0);
+    }
+
+    /**
+     * Write the map to the sidecar file with a single write, if it changed
+     * since it was last stored.
+     */
+    public synchronized void store() throws IOException {
+        if (!changed) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(numberOfPages * ENTRY_SIZE);
+        for (int i = 0; i < numberOfPages; i++) {
+            buffer.putShort((short) freeSlots[i]);
+        }
+        buffer.flip();
+        RandomAccessFile accessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = accessFile.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+        } finally {
+            accessFile.close();
+        }
+        changed = false;
+    }
+}
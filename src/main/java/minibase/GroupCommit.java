@@ -0,0 +1,174 @@
+package minibase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupCommit forces the log on behalf of many transactions at once. Instead
+ * of forcing the log itself, a committer appends its commit record and waits
+ * in {@link #awaitForce} for the LSN of the record. A flusher thread writes
+ * out the log buffer and forces the log once for every record appended by
+ * then, and wakes up the waiters it made durable together.
+ * Committers that arrive while a force is under way are covered by the next
+ * one, so under load a single fsync makes many commits durable.
+ * <p>
+ * With a maximum batch delay the flusher waits that long before each force,
+ * to gather more committers into the batch at the cost of commit latency. The
+ * flusher thread is started by the first waiter and stops once nobody has
+ * waited for {@link #IDLE_MILLIS}, so an idle log holds no thread.
+ */
+public class GroupCommit {
+
+    /** Time the flusher thread waits for work before it stops, in ms. */
+    static final long IDLE_MILLIS = 1000;
+
+    private final LogFile logFile;
+    private volatile long maxBatchDelayMicros;
+
+    // all guarded by this. Records below forced are durable, records below
+    // settled have been forced or failed to be.
+    private long maxRequested;
+    private long forced;
+    private long settled;
+    private IOException failure;
+    private boolean flusherIdle;
+    private Thread flusher;
+    private long requests;
+    private long forces;
+
+    public GroupCommit(LogFile logFile) {
+        this.logFile = logFile;
+        this.maxBatchDelayMicros = 0;
+        this.maxRequested = -1;
+    }
+
+    /**
+     * Wait until the log has been forced to disk up to and including the
+     * record with the given LSN, which has been appended already.
+     *
+     * @throws IOException if the force failed
+     */
+    public synchronized void awaitForce(long lsn) throws IOException {
+        requests++;
+        if (forced > lsn) {
+            return;
+        }
+        maxRequested = Math.max(maxRequested, lsn);
+        if (flusher == null) {
+            flusher = new Thread("minibase-log-flusher") {
+                @Override
+                public void run() {
+                    flush();
+                }
+            };
+            flusher.setDaemon(true);
+            flusher.start();
+        } else if (flusherIdle) {
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (forced <= lsn) {
+            if (settled > lsn) {
+                throw new IOException("log force failed", failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the record is in the log already; the caller must not
+                // return before it is durable
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            synchronized (this) {
+                if (!awaitWaiters()) {
+                    flusher = null;
+                    return;
+                }
+                long delayMicros = maxBatchDelayMicros;
+                if (delayMicros > 0) {
+                    try {
+                        TimeUnit.MICROSECONDS.timedWait(this, delayMicros);
+                    } catch (InterruptedException e) {
+                        // force right away
+                    }
+                }
+            }
+            // write and force outside of the monitor, so that committers can
+            // queue up for the next batch meanwhile
+            long target = 0;
+            IOException forceFailure = null;
+            try {
+                target = logFile.writeAppended();
+                logFile.force();
+            } catch (IOException e) {
+                forceFailure = e;
+            }
+            synchronized (this) {
+                forces++;
+                if (forceFailure == null) {
+                    forced = Math.max(forced, target);
+                    settled = Math.max(settled, target);
+                } else {
+                    failure = forceFailure;
+                    settled = maxRequested + 1;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait, under the monitor, for a waiter whose record is not settled yet.
+     *
+     * @return false if there was none for {@link #IDLE_MILLIS}
+     */
+    private boolean awaitWaiters() {
+        long idleSince = System.currentTimeMillis();
+        while (maxRequested < settled) {
+            long remaining = idleSince + IDLE_MILLIS - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            flusherIdle = true;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                // check again
+            } finally {
+                flusherIdle = false;
+            }
+        }
+        return true;
+    }
+
+    /** @return how long the flusher waits for more committers before each force, in microseconds */
+    public long getMaxBatchDelayMicros() {
+        return maxBatchDelayMicros;
+    }
+
+    /**
+     * Set how long the flusher waits for more committers before each force.
+     * The default of 0 forces as soon as the previous force is done, which
+     * already batches the committers that arrived during it.
+     */
+    public void setMaxBatchDelayMicros(long maxBatchDelayMicros) {
+        this.maxBatchDelayMicros = maxBatchDelayMicros;
+    }
+
+    /** @return the number of times the flusher forced the log. */
+    public synchronized long getForceCount() {
+        return forces;
+    }
+
+    /** @return the number of calls to wait for the log to be forced. */
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+}
@@ -4,7 +4,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -13,14 +17,22 @@ import java.util.concurrent.atomic.AtomicInteger;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written with positional FileChannel calls, which do not
+ * move a shared file pointer, so any number of threads can read and write
+ * pages of the same file at the same time.
+ * <p>
+ * Inserts find a page with a free slot through the table's
+ * {@link FreeSpaceMap} rather than by reading its pages in order.
  *
  */
 public class HeapFile implements DbFile {
 
     private final File backingFile;
-    private final RandomAccessFile accessFile;
+    private volatile FileChannel channel;
     private final TupleDesc tupleDesc;
     private final AtomicInteger numberOfPages;
+    private final FreeSpaceMap freeSpaceMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -30,12 +42,13 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.backingFile = f;
         try {
-            this.accessFile = new RandomAccessFile(f, "rw");
+            this.channel = openChannel();
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
         this.tupleDesc = td;
         this.numberOfPages = new AtomicInteger((int) backingFile.length() / BufferPool.getPageSize());
+        this.freeSpaceMap = new FreeSpaceMap(f, numberOfPages.get());
     }
 
     /**
@@ -71,16 +84,77 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    private FileChannel openChannel() throws FileNotFoundException {
+        return new RandomAccessFile(backingFile, "rw").getChannel();
+    }
+
+    /**
+     * A thread that is interrupted in the middle of a FileChannel operation
+     * closes the channel for every thread. In that case open it again, so one
+     * interrupted reader does not take the table down.
+     */
+    private synchronized FileChannel reopenChannel(FileChannel closedChannel) throws IOException {
+        if (channel == closedChannel) {
+            channel = openChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Read bytes from the file at the given offset until the buffer is full or
+     * the end of the file is reached.
+     *
+     * @return the number of bytes read
+     */
+    private int readFully(ByteBuffer buffer, long offset) throws IOException {
+        FileChannel fileChannel = channel;
+        while (true) {
+            try {
+                int start = buffer.position();
+                while (buffer.hasRemaining()) {
+                    int numberOfBytesRead = fileChannel.read(buffer, offset + buffer.position() - start);
+                    if (numberOfBytesRead < 0) {
+                        break;
+                    }
+                }
+                return buffer.position() - start;
+            } catch (ClosedChannelException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                buffer.rewind();
+                fileChannel = reopenChannel(fileChannel);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        FileChannel fileChannel = channel;
+        while (true) {
+            try {
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer, offset + buffer.position());
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                buffer.rewind();
+                fileChannel = reopenChannel(fileChannel);
+            }
+        }
+    }
+
     // see DbFile.java for javadocs
 //    @Override
     public Page readPage(PageId pid) {
         int pageSize = BufferPool.getPageSize();
-        int offset = pageSize * pid.pageNumber();
+        long offset = (long) pageSize * pid.pageNumber();
         try {
             byte[] readData = new byte[pageSize];
-            accessFile.seek(offset);
-            int numberOfBytesRead = accessFile.read(readData);
-            if (numberOfBytesRead == BufferPool.getPageSize()) {
+            int numberOfBytesRead = readFully(ByteBuffer.wrap(readData), offset);
+            if (numberOfBytesRead == pageSize) {
                 return new HeapPage(pid, readData);
             }
             throw new RuntimeException("Did not read entire page successfully.");
@@ -89,14 +163,71 @@ public class HeapFile implements DbFile {
         }
     }
 
+    /**
+     * Reads the raw bytes of a page into the given buffer without decoding them,
+     * e.g. into a frame of an off-heap {@link BufferPool}.
+     *
+     * @param buffer receives the page from its position on; must have at least a
+     *          page of room
+     */
+    public void readPageData(int pageNumber, ByteBuffer buffer) {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer page = buffer.duplicate();
+        page.limit(page.position() + pageSize);
+        try {
+            if (readFully(page.slice(), (long) pageSize * pageNumber) != pageSize) {
+                throw new RuntimeException("Did not read entire page successfully.");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a run of consecutive pages with a single positional read, instead of
+     * one read per page. Used by read-ahead, which always fetches contiguous
+     * runs of pages.
+     *
+     * @param firstPageNumber number of the first page to read
+     * @param numberOfPages number of pages to read
+     * @return the pages, in page number order
+     */
+    public List<Page> readPages(int firstPageNumber, int numberOfPages) {
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pageSize * firstPageNumber;
+        try {
+            byte[] readData = new byte[pageSize * numberOfPages];
+            int numberOfBytesRead = readFully(ByteBuffer.wrap(readData), offset);
+            if (numberOfBytesRead != readData.length) {
+                throw new RuntimeException("Did not read entire pages successfully.");
+            }
+            List<Page> pages = new ArrayList<Page>(numberOfPages);
+            for (int i = 0; i < numberOfPages; i++) {
+                byte[] pageData = new byte[pageSize];
+                System.arraycopy(readData, i * pageSize, pageData, 0, pageSize);
+                pages.add(new HeapPage(new HeapPageId(getId(), firstPageNumber + i), pageData));
+            }
+            return pages;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     // see DbFile.java for javadocs
 //    @Override
     public void writePage(Page page) throws IOException {
         int pageSize = BufferPool.getPageSize();
-        int offset = pageSize * page.getId().pageNumber();
+        long offset = (long) pageSize * page.getId().pageNumber();
         try {
-            accessFile.seek(offset);
-            accessFile.write(page.getPageData());
+            writeFully(ByteBuffer.wrap(page.getPageData()), offset);
+            int pageNumber = page.getId().pageNumber();
+            int pages = numberOfPages.get();
+            while (pageNumber >= pages && !numberOfPages.compareAndSet(pages, pageNumber + 1)) {
+                pages = numberOfPages.get();
+            }
+            if (page instanceof HeapPage) {
+                freeSpaceMap.update(pageNumber, ((HeapPage) page).getNumEmptySlots());
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -109,37 +240,79 @@ public class HeapFile implements DbFile {
         return numberOfPages.get();
     }
 
+    /**
+     * @return the free space map of this HeapFile.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpaceMap;
+    }
+
     private HeapPage attemptTupleInsert(TransactionId tid, Tuple t, int pageNumber)
-            throws DbException, TransactionAbortedException {
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
         PageId pageId = new HeapPageId(getId(), pageNumber);
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+        HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
         int numberOfEmptySlots = heapPage.getNumEmptySlots();
         if (numberOfEmptySlots > 0) {
-            heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            heapPage.insertTuple(t);
-            return heapPage;
+            heapPage = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
+            boolean inserted = false;
+            RecordId lockedRecordId = null;
+            // latch the page, which other transactions may be writing records
+            // of under record-level locking
+            synchronized (heapPage) {
+                if (heapPage.getNumEmptySlots() > 0) {
+                    if (bufferPool.logsTupleChanges(tid)) {
+                        heapPage.insertTuple(tid, t);
+                    } else {
+                        heapPage.insertTuple(t);
+                    }
+                    inserted = true;
+                    if (bufferPool.isRecordLocking() && !bufferPool.tryAcquireRecordLock(tid, t.getRecordId())) {
+                        // the slot was freed by a transaction that is still running
+                        lockedRecordId = t.getRecordId();
+                        heapPage.deleteTuple(tid, t);
+                        inserted = false;
+                    }
+                }
+                freeSpaceMap.update(pageNumber, heapPage.getNumEmptySlots());
+            }
+            if (inserted) {
+                return heapPage;
+            }
+            if (lockedRecordId != null) {
+                // wait for that transaction, then try again
+                bufferPool.acquireRecordLock(tid, lockedRecordId, Permissions.READ_WRITE);
+            }
+            return null;
         }
-        Database.getBufferPool().releasePage(tid, pageId);
+        // the map was wrong about this page
+        freeSpaceMap.update(pageNumber, 0);
+        bufferPool.releasePage(tid, pageId);
         return null;
     }
 
+    /**
+     * Appends an empty page to the file.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int newPageNumber = numberOfPages.get();
+        writePage(new HeapPage(new HeapPageId(getId(), newPageNumber), HeapPage.createEmptyPageData()));
+        return newPageNumber;
+    }
+
 //     see DbFile.java for javadocs
 //    @Override
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException,
             TransactionAbortedException {
         HeapPage insertedPage = null;
-        for (int pageNumber = 0; pageNumber < numberOfPages.get(); pageNumber++) {
-            insertedPage = attemptTupleInsert(tid, t, pageNumber);
-            if (insertedPage != null) {
-                break;
+        while (insertedPage == null) {
+            int pageNumber = freeSpaceMap.findPageWithFreeSlot();
+            if (pageNumber < 0) {
+                pageNumber = appendEmptyPage();
             }
-        }
-        if (insertedPage == null) {
-            int newPageNumber = numberOfPages.getAndIncrement();
-            HeapPage newHeapPage = new HeapPage(new HeapPageId(getId(), newPageNumber),
-                    HeapPage.createEmptyPageData());
-            newHeapPage.insertTuple(t);
-            insertedPage = attemptTupleInsert(tid, t, newPageNumber);
+            insertedPage = attemptTupleInsert(tid, t, pageNumber);
         }
         ArrayList<Page> affectedPages = new ArrayList<Page>();
         affectedPages.add(insertedPage);
@@ -154,9 +327,23 @@ public class HeapFile implements DbFile {
         if (pageId == null || pageId.getTableId() != getId()) {
             throw new DbException("File cannot delete tuple that it does not contain.");
         }
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId,
-                Permissions.READ_WRITE);
-        heapPage.deleteTuple(t);
+        BufferPool bufferPool = Database.getBufferPool();
+        HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
+        if (bufferPool.isRecordLocking()) {
+            bufferPool.acquireRecordLock(tid, t.getRecordId(), Permissions.READ_WRITE);
+        }
+        synchronized (heapPage) {
+            if (bufferPool.logsTupleChanges(tid)) {
+                try {
+                    heapPage.deleteTuple(tid, t);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                heapPage.deleteTuple(t);
+            }
+            freeSpaceMap.update(pageId.pageNumber(), heapPage.getNumEmptySlots());
+        }
         return heapPage;
     }
 
@@ -103,7 +103,8 @@ public class HeapFileEncoder {
         for (int i = 0; i < numFields; i++) {
             nrecbytes += typeAr[i].getLen();
         }
-        int nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1); // floor comes for
+        // every page starts with its page LSN, zero for a new page
+        int nrecords = ((npagebytes - HeapPage.LSN_SIZE) * 8) / (nrecbytes * 8 + 1); // floor comes for
         // free
 
         // per record, we need one bit; there are nrecords per page, so we need
@@ -207,10 +208,11 @@ public class HeapFileEncoder {
 
                 // pad the rest of the page with zeroes
 
-                for (i = 0; i < (npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
+                for (i = 0; i < (npagebytes - (HeapPage.LSN_SIZE + recordcount * nrecbytes + nheaderbytes)); i++)
                     pageStream.writeByte(0);
 
-                // write header and body to file
+                // write page LSN, header and body to file
+                os.write(new byte[HeapPage.LSN_SIZE]);
                 headerStream.flush();
                 headerBAOS.writeTo(os);
                 pageStream.flush();
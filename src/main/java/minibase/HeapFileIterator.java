@@ -1,6 +1,8 @@
 package minibase;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class HeapFileIterator implements DbFileIterator {
@@ -9,35 +11,91 @@ public class HeapFileIterator implements DbFileIterator {
     private final int numberOfPages;
     private final TransactionId transactionId;
     private int currentPageNumber;
+    private HeapPage currentPage;
     private Iterator<Tuple> currentPageIterator;
+    private int nextSlot;
+    private boolean recordLocking;
     private boolean open;
     private Tuple next;
+    private ScanRing scanRing;
+    private final List<Predicate> predicates;
 
     private HeapFileIterator(int tableId, int numberOfPages, TransactionId transactionId) {
         this.tableId = tableId;
         this.numberOfPages = numberOfPages;
         this.open = false;
         this.transactionId = transactionId;
+        this.predicates = new ArrayList<Predicate>();
     }
 
     public static HeapFileIterator create(int tableId, int numberOfPages, TransactionId transactionId) {
         return new HeapFileIterator(tableId, numberOfPages, transactionId);
     }
 
+    /**
+     * Only return tuples that satisfy the given predicate. Predicates are
+     * evaluated on the page bytes, before tuples are built. Must be called
+     * before the iterator is opened.
+     */
+    public void addPredicate(Predicate predicate) {
+        if (!predicates.contains(predicate)) {
+            predicates.add(predicate);
+        }
+    }
+
 //    @Override
     public void open() throws DbException, TransactionAbortedException {
         if (open) {
             throw new DbException("Opened already open HeapFileIterator");
         }
         this.open = true;
+        // large scans recycle a few frames of their own rather than flushing
+        // the working set out of the shared pool.
+        this.scanRing = Database.getBufferPool().createScanRing(numberOfPages);
+        this.recordLocking = Database.getBufferPool().isRecordLocking();
         rewind();
     }
 
     private Iterator<Tuple> getPageIterator(int pageNumber) throws DbException,
             TransactionAbortedException {
         PageId pageId = new HeapPageId(tableId, pageNumber);
-        Page page = Database.getBufferPool().getPage(transactionId, pageId, Permissions.READ_ONLY);
-        return ((HeapPage) page).iterator();
+        Page page = Database.getBufferPool().getPage(transactionId, pageId, Permissions.READ_ONLY,
+                scanRing);
+        currentPage = (HeapPage) page;
+        nextSlot = 0;
+        return recordLocking ? null : currentPage.iterator(predicates);
+    }
+
+    /**
+     * Under record-level locking other transactions may be writing the page
+     * while it is read, so the page is latched to find each tuple, and the
+     * tuple is locked before it is read. Its slot is checked again once the
+     * lock is granted, as the tuple's writer may have deleted it meanwhile.
+     *
+     * @return the next tuple of the current page, or null if there is none
+     */
+    private Tuple nextOnPage() throws TransactionAbortedException {
+        if (!recordLocking) {
+            return currentPageIterator.hasNext() ? currentPageIterator.next() : null;
+        }
+        while (true) {
+            int slot;
+            synchronized (currentPage) {
+                slot = currentPage.getNextMatchingSlot(nextSlot, predicates);
+            }
+            if (slot < 0) {
+                return null;
+            }
+            nextSlot = slot + 1;
+            Database.getBufferPool().acquireRecordLock(transactionId, new RecordId(currentPage.getId(), slot),
+                    Permissions.READ_ONLY);
+            // the tuple may have changed while this waited for the lock
+            synchronized (currentPage) {
+                if (currentPage.getNextMatchingSlot(slot, predicates) == slot) {
+                    return currentPage.getTuple(slot);
+                }
+            }
+        }
     }
 
     private void incrementPageNumber() throws DbException, TransactionAbortedException {
@@ -50,8 +108,9 @@ public class HeapFileIterator implements DbFileIterator {
 
     private Tuple getNext() throws DbException, TransactionAbortedException {
         while (currentPageNumber < numberOfPages) {
-            if (currentPageIterator.hasNext()) {
-                return currentPageIterator.next();
+            Tuple tuple = nextOnPage();
+            if (tuple != null) {
+                return tuple;
             }
             incrementPageNumber();
         }
@@ -85,6 +144,8 @@ public class HeapFileIterator implements DbFileIterator {
 //    @Override
     public void close() {
         open = false;
+        scanRing = null;
+        currentPage = null;
     }
 
 }
\ No newline at end of file
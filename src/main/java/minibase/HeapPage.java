@@ -1,16 +1,30 @@
 package minibase;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the bytes it was created from and does not decode them up
+ * front. Fields are read straight from the page bytes at offsets computed from
+ * the TupleDesc, and a Tuple object is only built when a tuple is handed out,
+ * so loading a page allocates nothing per tuple and a scan that filters rows
+ * with {@link #iterator(List)} only builds the tuples that pass. Inserted
+ * tuples are kept as objects, and only serialized by {@link #getPageData}.
+ * <p>
+ * Inserts, deletes and updates made on behalf of a transaction are logged as
+ * they happen, as the slot and the bytes of the tuple, so flushing the page
+ * needs no update record of the whole page. The page starts with the LSN of
+ * the log record of its last change, which recovery compares to the LSN of a
+ * record to tell whether the page on disk has the change already.
  *
  * @see HeapFile
  * @see BufferPool
@@ -18,28 +32,43 @@ import java.util.NoSuchElementException;
  */
 public class HeapPage implements Page {
 
-    private static final int BYTE_SIZE = 8;
+    /** Bytes of the page LSN at the start of every page. */
+    static final int LSN_SIZE = 8;
 
     private final PageId heapPageId;
     private final TupleDesc tupleDesc;
+    private final ByteBuffer data;
     private final byte header[];
-    private final Tuple tuples[];
+    private final Tuple insertedTuples[];
     private final int numberOfTupleSlots;
 
-    private byte[] oldData;
+    /**
+     * Bytes of the page before the changes of the transaction that is
+     * modifying it; starts out as the bytes the page was created from.
+     */
+    private ByteBuffer oldData;
+    /** Set on commit; the current content is copied to oldData on the next write. */
+    private boolean oldDataOutdated;
 
     private final Byte oldDataLock = new Byte((byte) 0);
 
     private boolean isDirty;
     private TransactionId dirtyingTransactionId;
 
+    /** LSN of the log record of the last change to the page. */
+    private long lsn;
+    /** LSN of the first log record of a change since the page was written, or -1. */
+    private volatile long recoveryLsn;
+    /** Whether the page was changed since its last log record without logging. */
+    private boolean unloggedChanges;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk. The format of
-     * a HeapPage is a set of header bytes indicating the slots of the page that
-     * are in use, some number of tuple slots. Specifically, the number of tuples
-     * is equal to:
+     * a HeapPage is a long integer page LSN, a set of header bytes indicating
+     * the slots of the page that are in use, some number of tuple slots.
+     * Specifically, the number of tuples is equal to:
      * <p>
-     * floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     * floor(((BufferPool.getPageSize() - 8)*8) / (tuple size * 8 + 1))
      * <p>
      * where tuple size is the size of tuples in this database table, which can be
      * determined via {@link Catalog#getTupleDesc}. The number of 8-bit header
@@ -53,30 +82,41 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(PageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the bytes of the page, in the
+     * format described above, such as a slice of a memory-mapped file. Fields
+     * are read out of the buffer by absolute position whenever they are needed,
+     * so the buffer is kept, but never modified; its content must not change
+     * for as long as the page is in use.
+     *
+     * @see MappedHeapFile
+     */
+    public HeapPage(PageId id, ByteBuffer data) throws IOException {
         this.heapPageId = id;
         this.tupleDesc = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numberOfTupleSlots = getNumTuples(this.tupleDesc);
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
-        // allocate and read the header slots of this page
+        // the header is copied, as inserts and deletes change it
         header = new byte[getHeaderSize(this.numberOfTupleSlots)];
         for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+            header[i] = data.get(LSN_SIZE + i);
 
-        // allocate and read the actual records of this page
-        tuples = new Tuple[numberOfTupleSlots];
-        try {
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+        insertedTuples = new Tuple[numberOfTupleSlots];
 
         this.isDirty = false;
         this.dirtyingTransactionId = null;
-
-        setBeforeImage();
+        this.lsn = data.getLong(0);
+        this.recoveryLsn = -1;
+        this.unloggedChanges = false;
+
+        // the page bytes are never modified, so they are the before-image
+        // until the page is first committed
+        this.oldData = data;
+        this.oldDataOutdated = false;
     }
 
     /**
@@ -85,7 +125,7 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private static int getNumTuples(TupleDesc tupleDesc) {
-        return (int) Math.floor((BufferPool.getPageSize() * 8)
+        return (int) Math.floor(((BufferPool.getPageSize() - LSN_SIZE) * 8)
                 / ((double) (tupleDesc.getSize() * 8 + 1)));
     }
 
@@ -106,9 +146,14 @@ public class HeapPage implements Page {
 //    @Override
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                if (oldDataOutdated) {
+                    // not written since the last commit
+                    oldData = ByteBuffer.wrap(getPageData());
+                    oldDataOutdated = false;
+                }
+                oldDataRef = oldData.duplicate();
             }
             return new HeapPage(heapPageId, oldDataRef);
         } catch (IOException e) {
@@ -119,10 +164,25 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Make the current content the before-image. The content is only copied
+     * when the page is next modified (or its before-image asked for), so
+     * committing a page costs nothing until it is written again.
+     */
 //    @Override
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldDataOutdated = true;
+        }
+    }
+
+    /** Called before every modification, to capture the before-image if needed. */
+    private void beforeWrite() {
+        synchronized (oldDataLock) {
+            if (oldDataOutdated) {
+                oldData = ByteBuffer.wrap(getPageData());
+                oldDataOutdated = false;
+            }
         }
     }
 
@@ -134,40 +194,124 @@ public class HeapPage implements Page {
         return heapPageId;
     }
 
+    /** @return the offset of the given slot in the page bytes. */
+    private int getSlotOffset(int slotId) {
+        return LSN_SIZE + header.length + slotId * tupleDesc.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot in the bytes of a page of a table
+     *         with the given TupleDesc
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < tupleDesc.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    static int getSlotOffset(TupleDesc tupleDesc, int slotId) {
+        return LSN_SIZE + getHeaderSize(getNumTuples(tupleDesc)) + slotId * tupleDesc.getSize();
+    }
+
+    /** Set or clear the header bit of a slot in the bytes of a page. */
+    static void setSlotUsed(byte[] pageData, int slotId, boolean used) {
+        int headerByte = LSN_SIZE + slotId / 8;
+        if (used) {
+            pageData[headerByte] |= 1 << (slotId % 8);
+        } else {
+            pageData[headerByte] &= ~(1 << (slotId % 8));
+        }
+    }
+
+    /** @return the page LSN in the bytes of a page */
+    static long getPageLsn(byte[] pageData) {
+        return ByteBuffer.wrap(pageData).getLong(0);
+    }
+
+    /** Set the page LSN in the bytes of a page. */
+    static void setPageLsn(byte[] pageData, long lsn) {
+        ByteBuffer.wrap(pageData).putLong(0, lsn);
+    }
+
+    /** @return the bytes of the tuple in the given slot, as written to disk. */
+    private byte[] getTupleData(int slotId) {
+        byte[] tupleData = new byte[tupleDesc.getSize()];
+        Tuple inserted = insertedTuples[slotId];
+        if (inserted == null) {
+            ByteBuffer source = data.duplicate();
+            source.position(getSlotOffset(slotId));
+            source.get(tupleData);
+            return tupleData;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleData.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < tupleDesc.numFields(); j++) {
+                inserted.getField(j).serialize(dos);
             }
-            return null;
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.arraycopy(baos.toByteArray(), 0, tupleData, 0, tupleData.length);
+        return tupleData;
+    }
+
+    /**
+     * Read one field of the tuple in the given slot, without building the
+     * tuple.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int fieldIndex) {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("Slot " + slotId + " is empty.");
+        }
+        Tuple inserted = insertedTuples[slotId];
+        if (inserted != null) {
+            return inserted.getField(fieldIndex);
+        }
+        int offset = getSlotOffset(slotId);
+        for (int j = 0; j < fieldIndex; j++) {
+            offset += tupleDesc.getFieldType(j).getLen();
+        }
+        return tupleDesc.getFieldType(fieldIndex).parse(data, offset);
+    }
+
+    /**
+     * Build the tuple in the given slot.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("Slot " + slotId + " is empty.");
+        }
+        Tuple inserted = insertedTuples[slotId];
+        if (inserted != null) {
+            return inserted;
         }
 
         // read fields in the tuple
         Tuple t = new Tuple(tupleDesc);
         RecordId rid = new RecordId(heapPageId, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j = 0; j < tupleDesc.numFields(); j++) {
-                Field f = tupleDesc.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        int offset = getSlotOffset(slotId);
+        for (int j = 0; j < tupleDesc.numFields(); j++) {
+            Type type = tupleDesc.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
         }
 
         return t;
     }
 
+    /** @return whether the tuple in the given slot satisfies every predicate. */
+    private boolean matches(int slotId, List<Predicate> predicates) {
+        for (int i = 0; i < predicates.size(); i++) {
+            Predicate predicate = predicates.get(i);
+            if (!getField(slotId, predicate.getField()).compare(predicate.getOp(),
+                    predicate.getOperand())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Generates a byte array representing the contents of this page. Used to
      * serialize this page to disk.
@@ -181,67 +325,30 @@ public class HeapPage implements Page {
      */
 //    @Override
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] pageData = new byte[BufferPool.getPageSize()];
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
+        setPageLsn(pageData, lsn);
+        System.arraycopy(header, 0, pageData, LSN_SIZE, header.length);
 
-            // empty slot
+        // create the tuples; empty slots and the padding stay zero
+        int tupleSize = tupleDesc.getSize();
+        ByteBuffer source = data.duplicate();
+        for (int i = 0; i < numberOfTupleSlots; i++) {
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < tupleDesc.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
-            for (int j = 0; j < tupleDesc.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            int offset = getSlotOffset(i);
+            if (insertedTuples[i] == null) {
+                // unchanged tuple, copy its bytes
+                source.position(offset);
+                source.get(pageData, offset, tupleSize);
+                continue;
             }
+            System.arraycopy(getTupleData(i), 0, pageData, offset, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + tupleDesc.getSize() * tuples.length); // -
-        // numSlots
-        // *
-        // td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return pageData;
     }
 
     /**
@@ -266,16 +373,41 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
+        delete(t);
+        unloggedChanges = true;
+    }
+
+    /**
+     * Delete the specified tuple from the page on behalf of a transaction, and
+     * log the delete.
+     *
+     * @see #deleteTuple(Tuple)
+     */
+    public void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException {
+        int slotId = getSlotOfTuple(t, "deleted from");
+        byte[] tupleData = getTupleData(slotId);
+        delete(t);
+        Database.getLogFile().logDelete(tid, this, slotId, tupleData);
+    }
+
+    /** @return the slot of a tuple on this page. */
+    private int getSlotOfTuple(Tuple t, String operation) throws DbException {
         if (t.getRecordId() == null || !(t.getRecordId().getPageId().equals(heapPageId))) {
-            throw new DbException("Tuple can only be deleted from its page.");
+            throw new DbException("Tuple can only be " + operation + " its page.");
         }
         int tupleNumber = t.getRecordId().tupleno();
         if (!isSlotUsed(tupleNumber)) {
             throw new DbException("Tuple's slot is already empty.");
         }
+        return tupleNumber;
+    }
+
+    private void delete(Tuple t) throws DbException {
+        int tupleNumber = getSlotOfTuple(t, "deleted from");
+        beforeWrite();
         markSlotUsed(tupleNumber, false);
         t.setRecordId(null);
-        tuples[tupleNumber] = null;
+        insertedTuples[tupleNumber] = null;
     }
 
     /**
@@ -287,16 +419,66 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        if (!(t.getTupleDesc().equals(tupleDesc))) {
-            throw new DbException("Cannot insert a Tuple with a different TupleDesc.");
+        insert(t);
+        unloggedChanges = true;
+    }
+
+    /**
+     * Adds the specified tuple to the page on behalf of a transaction, and
+     * logs the insert.
+     *
+     * @see #insertTuple(Tuple)
+     */
+    public void insertTuple(TransactionId tid, Tuple t) throws DbException, IOException {
+        int slotId = insert(t);
+        Database.getLogFile().logInsert(tid, this, slotId, getTupleData(slotId));
+    }
+
+    /**
+     * Adds the specified tuple to the given slot of the page on behalf of a
+     * transaction, and logs the insert; puts a deleted tuple back where it
+     * was.
+     *
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(TransactionId tid, Tuple t, int slotId) throws DbException, IOException {
+        if (slotId < 0 || slotId >= numberOfTupleSlots || isSlotUsed(slotId)) {
+            throw new DbException("Slot " + slotId + " is not empty.");
         }
+        insert(t, slotId);
+        Database.getLogFile().logInsert(tid, this, slotId, getTupleData(slotId));
+    }
+
+    /** @return the slot the tuple was inserted into */
+    private int insert(Tuple t) throws DbException {
         int emptySlotIndex = getFirstEmptyTupleIndex();
         if (emptySlotIndex == numberOfTupleSlots) {
             throw new DbException("No empty slots available for Tuple insertion.");
         }
-        t.setRecordId(new RecordId(heapPageId, emptySlotIndex));
-        markSlotUsed(emptySlotIndex, true);
-        tuples[emptySlotIndex] = t;
+        insert(t, emptySlotIndex);
+        return emptySlotIndex;
+    }
+
+    private void insert(Tuple t, int slotId) throws DbException {
+        if (!(t.getTupleDesc().equals(tupleDesc))) {
+            throw new DbException("Cannot insert a Tuple with a different TupleDesc.");
+        }
+        beforeWrite();
+        t.setRecordId(new RecordId(heapPageId, slotId));
+        markSlotUsed(slotId, true);
+        insertedTuples[slotId] = t;
+    }
+
+    /**
+     * Record that a change to the page was logged by the record with the given
+     * LSN; called by the log under its lock, so that a checkpoint finds the
+     * page dirty once the record is in the log.
+     */
+    void logged(long recordLsn) {
+        lsn = recordLsn;
+        if (recoveryLsn < 0) {
+            recoveryLsn = recordLsn;
+        }
     }
 
     /**
@@ -318,6 +500,32 @@ public class HeapPage implements Page {
         return isDirty ? dirtyingTransactionId : null;
     }
 
+//    @Override
+    public long getLsn() {
+        return lsn;
+    }
+
+//    @Override
+    public boolean hasUnloggedChanges() {
+        return unloggedChanges;
+    }
+
+//    @Override
+    public void setLsn(long lsn) {
+        logged(lsn);
+        this.unloggedChanges = false;
+    }
+
+//    @Override
+    public long getRecoveryLsn() {
+        return recoveryLsn;
+    }
+
+//    @Override
+    public void markWritten() {
+        recoveryLsn = -1;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -329,21 +537,12 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int count = 0;
+        // the bits past the last slot are never set
+        int usedCount = 0;
         for (int i = 0; i < header.length; i++) {
-            int bytePresentCount = 0;
-            int headerByte = header[i];
-            if (headerByte < 0) {
-                bytePresentCount++;
-                headerByte += 1 << (BYTE_SIZE - 1);
-            }
-            for (; headerByte != 0; headerByte = headerByte >> 1) {
-                if (headerByte % 2 == 1)
-                    bytePresentCount++;
-            }
-            count += (8 - bytePresentCount);
+            usedCount += Integer.bitCount(header[i] & 0xff);
         }
-        return count;
+        return numberOfTupleSlots - usedCount;
     }
 
     /**
@@ -386,8 +585,16 @@ public class HeapPage implements Page {
         return nextTupleIndex;
     }
 
-    protected Tuple[] getTuples() {
-        return tuples;
+    /**
+     * @return the first used slot from startSlot on whose tuple satisfies all
+     *         of the given predicates, or -1 if there is none
+     */
+    public int getNextMatchingSlot(int startSlot, List<Predicate> predicates) {
+        int index = getNextUsedTupleIndex(startSlot, numberOfTupleSlots);
+        while (index < numberOfTupleSlots && !matches(index, predicates)) {
+            index = getNextUsedTupleIndex(index + 1, numberOfTupleSlots);
+        }
+        return index < numberOfTupleSlots ? index : -1;
     }
 
     /**
@@ -396,20 +603,36 @@ public class HeapPage implements Page {
      *         iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
+        return iterator(Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of the
+     *         given predicates. The predicates are evaluated on the page bytes,
+     *         so tuples that fail them are never built.
+     */
+    public Iterator<Tuple> iterator(final List<Predicate> predicates) {
         return new Iterator<Tuple>() {
 
-            int maxIndex = getTuples().length;
-            int currentIndex = getFirstUsedTupleIndex(maxIndex);
+            int currentIndex = nextMatchingIndex(0);
+
+            private int nextMatchingIndex(int startIndex) {
+                int index = getNextMatchingSlot(startIndex, predicates);
+                return index < 0 ? numberOfTupleSlots : index;
+            }
 
 //            @Override
             public boolean hasNext() {
-                return currentIndex < maxIndex;
+                return currentIndex < numberOfTupleSlots;
             }
 
 //            @Override
             public Tuple next() {
-                Tuple tuple = getTuples()[currentIndex];
-                currentIndex = getNextUsedTupleIndex(currentIndex + 1, maxIndex);
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple tuple = getTuple(currentIndex);
+                currentIndex = nextMatchingIndex(currentIndex + 1);
                 return tuple;
             }
 
@@ -421,4 +644,4 @@ public class HeapPage implements Page {
         };
     }
 
-}
\ No newline at end of file
+}
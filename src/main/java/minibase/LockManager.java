@@ -1,235 +1,1144 @@
 package minibase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager implements strict two-phase locking of pages with shared and
+ * exclusive locks.
+ * <p>
+ * Locks form a two-level hierarchy: before locking a page in S or X mode, a
+ * transaction takes an IS or IX intention lock on the page's table (see
+ * {@link LockMode}). Once a transaction holds more than the escalation
+ * threshold of page locks on one table, they are escalated into a single S or
+ * X lock on the table and the page locks are dropped; pages it touches after
+ * that are covered by the table lock. A big scan thus holds one lock instead
+ * of one per page. Escalation never waits: if the table lock is not available
+ * at once, the transaction keeps its page locks and tries again on the next
+ * one. Lock states with neither holders nor waiters are dropped, so the lock
+ * table only grows with the locks actually held.
+ * <p>
+ * Below the pages, records can be locked by {@link RecordId} under an IS or IX
+ * lock on their page, so that transactions writing different records of the
+ * same page do not block each other; see {@link BufferPool#setRecordLocking}.
+ * <p>
+ * Every locked page, table and record has a {@link LockState} holding its lock
+ * holders and a FIFO queue of waiting requests. The states live in a
+ * {@link LockTable} split into stripes, each with its own monitor, and each
+ * transaction keeps references to the states it holds, so that commit releases
+ * its locks without looking any of them up. A request is granted once it is
+ * compatible with the holders and no incompatible request is queued ahead of
+ * it, so a stream of readers cannot starve a writer; an uncontended request is
+ * granted without being queued at all. Waiting threads park on the monitor of the
+ * page's LockState and are woken up when a lock on that page is released, so
+ * they use no CPU while they wait. Lock upgrades are queued ahead of all other
+ * requests, as their transaction already holds the page.
+ * <p>
+ * While a request waits, its transaction has an edge in the waits-for graph to
+ * every transaction it waits for. A cycle can only be closed by the edges just
+ * added, so the graph is searched from the waiting transaction alone, at a cost
+ * bounded by the transactions it transitively waits for rather than by all of
+ * them. One transaction of a cycle is picked as the victim by the
+ * {@link VictimPolicy}; a victim other than the waiting transaction is woken up
+ * and its lock request fails with a TransactionAbortedException.
+ * <p>
+ * Alternatively the {@link DeadlockPolicy} can prevent deadlocks without a
+ * waits-for graph, by only letting transactions wait for younger (wait-die)
+ * or older (wound-wait) ones.
+ * <p>
+ * A lock timeout, set for all transactions or for a single one, bounds how
+ * long a request waits; past it the request fails with a
+ * TransactionAbortedException, so a stuck writer cannot hold up its waiters
+ * forever. Time spent waiting is summed per page and per table, to find the
+ * hot ones.
+ */
 public class LockManager {
 
-    private final ConcurrentMap<PageId, Object> locks;
-    private final Map<PageId, List<TransactionId>> sharedLocks;
-    private final Map<PageId, TransactionId> exclusiveLocks;
-    private final ConcurrentMap<TransactionId, Collection<PageId>> pageIdsLockedByTransaction;
-    private final ConcurrentMap<TransactionId, Collection<TransactionId>> dependencyGraph;
+    /** How deadlocks are dealt with. */
+    public enum DeadlockPolicy {
+        /** Let transactions wait, and break cycles in the waits-for graph. */
+        DETECT,
+        /**
+         * Prevent deadlocks with transaction timestamps (the TransactionId
+         * order, older first): an older transaction waits for a younger one,
+         * a younger one that would wait for an older one aborts instead.
+         */
+        WAIT_DIE,
+        /**
+         * Prevent deadlocks with transaction timestamps: a younger transaction
+         * waits for an older one, an older one wounds the younger ones it would
+         * wait for, which abort when they next wait for a lock.
+         */
+        WOUND_WAIT
+    }
+
+    /** How a deadlock victim is picked among the transactions of a cycle. */
+    public enum VictimPolicy {
+        /** Abort the transaction whose request closed the cycle. */
+        REQUESTER,
+        /** Abort the youngest transaction, which has the highest id. */
+        YOUNGEST,
+        /**
+         * Abort the transaction that has written the fewest bytes of log,
+         * which has the least work to undo; ties go to the youngest.
+         */
+        LEAST_LOG_WRITTEN
+    }
+
+    /** Default number of page locks on one table a transaction may hold before escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** Number of stripes of each lock table. */
+    static final int DEFAULT_STRIPES = 64;
+
+    /** Lock timeout meaning that requests wait until they are granted. */
+    public static final long NO_TIMEOUT = 0;
+
+    /** A request for a lock on a page or table, granted or queued. */
+    private static class LockRequest {
+        final TransactionId transactionId;
+        final LockMode mode;
+        final boolean upgrade;
+
+        LockRequest(TransactionId transactionId, LockMode mode, boolean upgrade) {
+            this.transactionId = transactionId;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+
+        boolean isCompatibleWith(TransactionId otherTransactionId, LockMode otherMode) {
+            return transactionId.equals(otherTransactionId) || mode.isCompatibleWith(otherMode);
+        }
+    }
+
+    /**
+     * Holders and waiters of the lock on one page, table or record; guarded by
+     * its own monitor. Most locks have one or two holders, so the holders are
+     * kept in two small parallel arrays rather than a map, and the queue of
+     * waiters is only created once a request has to wait.
+     */
+    private static class LockState {
+        final LockTable<?> lockTable;
+        final Object key;
+        private TransactionId[] holderIds = new TransactionId[2];
+        private LockMode[] holderModes = new LockMode[2];
+        private int holderCount;
+        private LinkedList<LockRequest> waiting;
+        /** Set once the state has been dropped from the lock table. */
+        boolean removed;
+
+        LockState(LockTable<?> lockTable, Object key) {
+            this.lockTable = lockTable;
+            this.key = key;
+        }
+
+        /** @return the mode the transaction holds the lock in, or null. */
+        LockMode getMode(TransactionId transactionId) {
+            for (int i = 0; i < holderCount; i++) {
+                if (holderIds[i].equals(transactionId)) {
+                    return holderModes[i];
+                }
+            }
+            return null;
+        }
+
+        void putHolder(TransactionId transactionId, LockMode mode) {
+            for (int i = 0; i < holderCount; i++) {
+                if (holderIds[i].equals(transactionId)) {
+                    holderModes[i] = mode;
+                    return;
+                }
+            }
+            if (holderCount == holderIds.length) {
+                holderIds = Arrays.copyOf(holderIds, holderCount * 2);
+                holderModes = Arrays.copyOf(holderModes, holderCount * 2);
+            }
+            holderIds[holderCount] = transactionId;
+            holderModes[holderCount] = mode;
+            holderCount++;
+        }
+
+        void removeHolder(TransactionId transactionId) {
+            for (int i = 0; i < holderCount; i++) {
+                if (holderIds[i].equals(transactionId)) {
+                    holderCount--;
+                    holderIds[i] = holderIds[holderCount];
+                    holderModes[i] = holderModes[holderCount];
+                    holderIds[holderCount] = null;
+                    holderModes[holderCount] = null;
+                    return;
+                }
+            }
+        }
+
+        boolean isHeldIn(LockMode mode) {
+            for (int i = 0; i < holderCount; i++) {
+                if (holderModes[i] == mode) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isUnused() {
+            return holderCount == 0 && !hasWaiters();
+        }
+
+        boolean hasWaiters() {
+            return waiting != null && !waiting.isEmpty();
+        }
+
+        int getWaiterCount() {
+            return waiting == null ? 0 : waiting.size();
+        }
+
+        /**
+         * @return whether a lock in the given mode can be granted to the
+         *         transaction right away: nobody is queued, and the other
+         *         holders are compatible
+         */
+        boolean isGrantable(TransactionId transactionId, LockMode mode) {
+            if (hasWaiters()) {
+                return false;
+            }
+            for (int i = 0; i < holderCount; i++) {
+                if (!holderIds[i].equals(transactionId) && !mode.isCompatibleWith(holderModes[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the transactions the request has to wait for: incompatible
+         *         holders, and incompatible requests queued ahead of it
+         */
+        Set<TransactionId> blockers(LockRequest request) {
+            Set<TransactionId> blockers = new HashSet<TransactionId>();
+            for (int i = 0; i < holderCount; i++) {
+                if (!request.isCompatibleWith(holderIds[i], holderModes[i])) {
+                    blockers.add(holderIds[i]);
+                }
+            }
+            if (waiting == null) {
+                return blockers;
+            }
+            for (LockRequest ahead : waiting) {
+                if (ahead == request) {
+                    break;
+                }
+                if (!request.isCompatibleWith(ahead.transactionId, ahead.mode)) {
+                    blockers.add(ahead.transactionId);
+                }
+            }
+            return blockers;
+        }
+
+        void enqueue(LockRequest request) {
+            if (waiting == null) {
+                waiting = new LinkedList<LockRequest>();
+            }
+            if (!request.upgrade) {
+                waiting.addLast(request);
+                return;
+            }
+            // upgrades go ahead of everything but earlier upgrades
+            int index = 0;
+            for (LockRequest queued : waiting) {
+                if (!queued.upgrade) {
+                    break;
+                }
+                index++;
+            }
+            waiting.add(index, request);
+        }
+
+        void dequeue(LockRequest request) {
+            if (waiting != null) {
+                waiting.remove(request);
+            }
+        }
+    }
+
+    /**
+     * Lock states by page, table or record id. Like the {@link PageTable}, the
+     * table is split into stripes by key hash, each a plain map guarded by its
+     * own monitor, so that lookups of different keys rarely contend. A stripe
+     * is only held to find, add or drop a state, never while waiting.
+     */
+    private static class LockTable<K> {
+        private final List<Map<K, LockState>> stripes;
+
+        LockTable(int numberOfStripes) {
+            stripes = new ArrayList<Map<K, LockState>>(numberOfStripes);
+            for (int i = 0; i < numberOfStripes; i++) {
+                stripes.add(new HashMap<K, LockState>());
+            }
+        }
+
+        private Map<K, LockState> stripeFor(Object key) {
+            int hash = key.hashCode();
+            hash ^= (hash >>> 16);
+            return stripes.get((hash & 0x7fffffff) % stripes.size());
+        }
+
+        LockState get(K key) {
+            Map<K, LockState> stripe = stripeFor(key);
+            synchronized (stripe) {
+                return stripe.get(key);
+            }
+        }
+
+        /**
+         * @return the lock state of the key, under the monitor of which the
+         *         caller has to check that it has not been removed since.
+         */
+        LockState getOrCreate(K key) {
+            Map<K, LockState> stripe = stripeFor(key);
+            synchronized (stripe) {
+                LockState state = stripe.get(key);
+                if (state == null) {
+                    state = new LockState(this, key);
+                    stripe.put(key, state);
+                }
+                return state;
+            }
+        }
+
+        /** Drop a lock state nobody holds or waits for; called under its monitor. */
+        void removeIfUnused(LockState state) {
+            if (!state.isUnused()) {
+                return;
+            }
+            state.removed = true;
+            Map<K, LockState> stripe = stripeFor(state.key);
+            synchronized (stripe) {
+                if (stripe.get(state.key) == state) {
+                    stripe.remove(state.key);
+                }
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (Map<K, LockState> stripe : stripes) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The locks one transaction holds, with their lock states, so that they
+     * are released without looking them up again. Page locks are kept by
+     * table, so that they can be counted and dropped per table on escalation.
+     * Guarded by its own monitor, as a transaction may lock pages from several
+     * threads.
+     */
+    private static class TransactionLocks {
+        final Map<Integer, Map<PageId, LockState>> pagesByTable = new HashMap<Integer, Map<PageId, LockState>>();
+        final Map<Integer, LockMode> tableModes = new HashMap<Integer, LockMode>();
+        final Map<Integer, LockState> tables = new HashMap<Integer, LockState>();
+        final Map<RecordId, LockState> records = new HashMap<RecordId, LockState>();
+
+        synchronized LockMode getTableMode(int tableId) {
+            return tableModes.get(tableId);
+        }
+
+        synchronized void addTable(int tableId, LockState state, LockMode mode) {
+            tables.put(tableId, state);
+            tableModes.put(tableId, mode);
+        }
+
+        /** @return the number of pages of the table now locked */
+        synchronized int addPage(PageId pageId, LockState state) {
+            Map<PageId, LockState> pages = pagesByTable.get(pageId.getTableId());
+            if (pages == null) {
+                pages = new HashMap<PageId, LockState>();
+                pagesByTable.put(pageId.getTableId(), pages);
+            }
+            pages.put(pageId, state);
+            return pages.size();
+        }
+
+        synchronized void addRecord(RecordId recordId, LockState state) {
+            records.put(recordId, state);
+        }
+
+        /** @return the state of the page lock, or null if it was not held */
+        synchronized LockState removePage(PageId pageId) {
+            Map<PageId, LockState> pages = pagesByTable.get(pageId.getTableId());
+            return pages == null ? null : pages.remove(pageId);
+        }
+
+        synchronized Collection<LockState> removePages(int tableId) {
+            Map<PageId, LockState> pages = pagesByTable.remove(tableId);
+            return pages == null ? Collections.<LockState>emptySet() : pages.values();
+        }
+    }
+
+    private final LockTable<PageId> locks;
+    private final LockTable<Integer> tableLocks;
+    private final LockTable<RecordId> recordLocks;
+    private final ConcurrentMap<TransactionId, TransactionLocks> locksByTransaction;
+    private final ConcurrentMap<TransactionId, Set<TransactionId>> dependencyGraph;
+    /** The lock state each waiting transaction parks on. */
+    private final ConcurrentMap<TransactionId, LockState> waitingOn;
+    /** Waiting transactions picked as deadlock victims; guarded by the state they wait on. */
+    private final Set<TransactionId> abortedWaiters;
+    /** Transactions wounded by an older one; they abort when they next wait. */
+    private final Set<TransactionId> wounded;
+    private volatile DeadlockPolicy deadlockPolicy;
+    private volatile VictimPolicy victimPolicy;
+    private volatile int escalationThreshold;
+    private volatile long lockTimeoutMillis;
+    /** Lock timeouts of transactions that override the global one. */
+    private final ConcurrentMap<TransactionId, Long> transactionLockTimeouts;
+
+    private final AtomicLong lockWaits;
+    private final AtomicLong lockWaitNanos;
+    private final AtomicLong lockTimeouts;
+    private final ConcurrentMap<PageId, AtomicLong> pageWaitNanos;
+    private final ConcurrentMap<Integer, AtomicLong> tableWaitNanos;
+    private final AtomicLong deadlocks;
+    private final AtomicLong escalations;
 
     private LockManager() {
-        locks = new ConcurrentHashMap<PageId, Object>();
-        sharedLocks = new HashMap<PageId, List<TransactionId>>();
-        exclusiveLocks = new HashMap<PageId, TransactionId>();
-        pageIdsLockedByTransaction = new ConcurrentHashMap<TransactionId, Collection<PageId>>();
-        dependencyGraph = new ConcurrentHashMap<TransactionId, Collection<TransactionId>>();
+        locks = new LockTable<PageId>(DEFAULT_STRIPES);
+        tableLocks = new LockTable<Integer>(DEFAULT_STRIPES);
+        recordLocks = new LockTable<RecordId>(DEFAULT_STRIPES);
+        locksByTransaction = new ConcurrentHashMap<TransactionId, TransactionLocks>();
+        dependencyGraph = new ConcurrentHashMap<TransactionId, Set<TransactionId>>();
+        waitingOn = new ConcurrentHashMap<TransactionId, LockState>();
+        abortedWaiters = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+        wounded = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+        deadlockPolicy = DeadlockPolicy.DETECT;
+        victimPolicy = VictimPolicy.YOUNGEST;
+        escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+        lockTimeoutMillis = NO_TIMEOUT;
+        transactionLockTimeouts = new ConcurrentHashMap<TransactionId, Long>();
+        lockWaits = new AtomicLong(0);
+        lockWaitNanos = new AtomicLong(0);
+        lockTimeouts = new AtomicLong(0);
+        pageWaitNanos = new ConcurrentHashMap<PageId, AtomicLong>();
+        tableWaitNanos = new ConcurrentHashMap<Integer, AtomicLong>();
+        deadlocks = new AtomicLong(0);
+        escalations = new AtomicLong(0);
     }
 
     public static LockManager create() {
         return new LockManager();
     }
 
-    private Object getLock(PageId pageId) {
-        locks.putIfAbsent(pageId, new Object());
-        return locks.get(pageId);
+    private TransactionLocks getTransactionLocks(TransactionId transactionId) {
+        TransactionLocks transactionLocks = locksByTransaction.get(transactionId);
+        if (transactionLocks == null) {
+            TransactionLocks newLocks = new TransactionLocks();
+            transactionLocks = locksByTransaction.putIfAbsent(transactionId, newLocks);
+            if (transactionLocks == null) {
+                transactionLocks = newLocks;
+            }
+        }
+        return transactionLocks;
     }
 
+    /**
+     * Acquire a lock on the page, blocking until it is granted.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *           deadlock, or the thread is interrupted while waiting
+     */
     public boolean acquireLock(TransactionId transactionId, PageId pageId, Permissions permissions)
             throws TransactionAbortedException {
         TransactionId notNullTransactionId = (transactionId == null) ? TransactionId.NULL_TRANSACTION_ID
                 : transactionId;
         if (permissions == Permissions.READ_ONLY) {
-            if (hasReadPermissions(notNullTransactionId, pageId)) {
-                return true;
-            }
-            while (!acquireReadOnlyLock(notNullTransactionId, pageId)) {
-                // waiting for lock
-            }
+            acquireReadOnlyLock(notNullTransactionId, pageId);
         } else if (permissions == Permissions.READ_WRITE) {
-            if (hasWritePermissions(notNullTransactionId, pageId)) {
-                return true;
-            }
-            while (!acquireReadWriteLock(notNullTransactionId, pageId)) {
-                // waiting for lock
-            }
+            acquireReadWriteLock(notNullTransactionId, pageId);
         } else {
             throw new IllegalArgumentException("Expected either READ_ONLY or READ_WRITE permissions.");
         }
-        addPageToTransactionLocks(notNullTransactionId, pageId);
         return true;
     }
 
-    private boolean hasReadPermissions(TransactionId transactionId, PageId pageId) {
-        if (hasWritePermissions(transactionId, pageId)) {
+    public boolean acquireReadOnlyLock(TransactionId transactionId, PageId pageId)
+            throws TransactionAbortedException {
+        return acquirePageLock(transactionId, pageId, LockMode.S);
+    }
+
+    public boolean acquireReadWriteLock(TransactionId transactionId, PageId pageId)
+            throws TransactionAbortedException {
+        return acquirePageLock(transactionId, pageId, LockMode.X);
+    }
+
+    /**
+     * Acquire an exclusive lock on the page, and the IX lock on its table,
+     * without waiting.
+     *
+     * @return whether the lock was granted
+     */
+    public boolean tryAcquireReadWriteLock(TransactionId transactionId, PageId pageId) {
+        TransactionLocks transactionLocks = getTransactionLocks(transactionId);
+        int tableId = pageId.getTableId();
+        LockMode tableMode = transactionLocks.getTableMode(tableId);
+        if (tableMode != null && tableMode.coversChildrenIn(LockMode.X)) {
             return true;
         }
-        return sharedLocks.containsKey(pageId) && sharedLocks.get(pageId).contains(transactionId);
+        if (tableMode == null || !tableMode.covers(LockMode.IX)) {
+            LockState tableState = tryAcquire(transactionId, tableLocks, tableId, LockMode.IX);
+            if (tableState == null) {
+                return false;
+            }
+            transactionLocks.addTable(tableId, tableState, getMode(tableState, transactionId));
+        }
+        LockState state = tryAcquire(transactionId, locks, pageId, LockMode.X);
+        if (state == null) {
+            return false;
+        }
+        transactionLocks.addPage(pageId, state);
+        return true;
     }
 
-    private boolean hasWritePermissions(TransactionId transactionId, PageId pageId) {
-        return exclusiveLocks.containsKey(pageId) && transactionId.equals(exclusiveLocks.get(pageId));
+    /**
+     * Acquire an IS or IX lock on the page, announcing that the transaction is
+     * going to lock records of it with {@link #acquireRecordLock}.
+     */
+    public boolean acquireIntentionLock(TransactionId transactionId, PageId pageId, Permissions permissions)
+            throws TransactionAbortedException {
+        return acquirePageLock(transactionId, pageId,
+                permissions == Permissions.READ_WRITE ? LockMode.IX : LockMode.IS);
     }
 
-    private void addPageToTransactionLocks(TransactionId transactionId, PageId pageId) {
-        pageIdsLockedByTransaction.putIfAbsent(transactionId, new LinkedBlockingQueue<PageId>());
-        pageIdsLockedByTransaction.get(transactionId).add(pageId);
+    private boolean acquirePageLock(TransactionId transactionId, PageId pageId, LockMode mode)
+            throws TransactionAbortedException {
+        TransactionLocks transactionLocks = getTransactionLocks(transactionId);
+        int tableId = pageId.getTableId();
+        LockMode tableMode = transactionLocks.getTableMode(tableId);
+        if (tableMode != null && tableMode.coversChildrenIn(mode)) {
+            return true;
+        }
+        LockMode intention = (mode == LockMode.X || mode == LockMode.IX) ? LockMode.IX : LockMode.IS;
+        if (tableMode == null || !tableMode.covers(intention)) {
+            LockState tableState = acquire(transactionId, tableLocks, tableId, intention);
+            transactionLocks.addTable(tableId, tableState, getMode(tableState, transactionId));
+        }
+        LockState state = acquire(transactionId, locks, pageId, mode);
+        if (transactionLocks.addPage(pageId, state) > escalationThreshold) {
+            escalate(transactionId, transactionLocks, tableId);
+        }
+        return true;
     }
 
-    public boolean acquireReadOnlyLock(TransactionId transactionId, PageId pageId)
+    /**
+     * Acquire a lock on a record, blocking until it is granted. Takes the
+     * matching intention locks on the record's page and table first; a lock
+     * on the page or table that covers the record is enough.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *           deadlock, or the thread is interrupted while waiting
+     */
+    public boolean acquireRecordLock(TransactionId transactionId, RecordId recordId, Permissions permissions)
             throws TransactionAbortedException {
-        Object lock = getLock(pageId);
-        while (true) {
-            synchronized (lock) {
-                TransactionId exclusiveLockHolder = exclusiveLocks.get(pageId);
-                if (exclusiveLockHolder == null || transactionId.equals(exclusiveLockHolder)) {
-                    removeDependencies(transactionId);
-                    addSharedUser(transactionId, pageId);
-                    return true;
-                }
-                addDependency(transactionId, exclusiveLockHolder);
-            }
+        LockMode mode = permissions == Permissions.READ_WRITE ? LockMode.X : LockMode.S;
+        acquireIntentionLock(transactionId, recordId.getPageId(), permissions);
+        if (isRecordCovered(transactionId, recordId, mode)) {
+            return true;
         }
+        LockState state = acquire(transactionId, recordLocks, recordId, mode);
+        getTransactionLocks(transactionId).addRecord(recordId, state);
+        return true;
     }
 
-    private void removeDependencies(TransactionId dependent) {
-        dependencyGraph.remove(dependent);
+    /**
+     * Acquire an exclusive lock on a record without waiting. The transaction
+     * must already hold an IX lock on the record's page.
+     *
+     * @return whether the lock was granted
+     */
+    public boolean tryAcquireRecordLock(TransactionId transactionId, RecordId recordId) {
+        if (isRecordCovered(transactionId, recordId, LockMode.X)) {
+            return true;
+        }
+        LockState state = tryAcquire(transactionId, recordLocks, recordId, LockMode.X);
+        if (state == null) {
+            return false;
+        }
+        getTransactionLocks(transactionId).addRecord(recordId, state);
+        return true;
     }
 
-    private void addDependency(TransactionId dependent, TransactionId dependee)
-            throws TransactionAbortedException {
-        Collection<TransactionId> dependees = new ArrayList<TransactionId>();
-        dependees.add(dependee);
-        addDependencies(dependent, dependees);
+    private boolean isRecordCovered(TransactionId transactionId, RecordId recordId, LockMode mode) {
+        PageId pageId = recordId.getPageId();
+        LockMode tableMode = getMode(tableLocks.get(pageId.getTableId()), transactionId);
+        LockMode pageMode = getMode(locks.get(pageId), transactionId);
+        return (tableMode != null && tableMode.coversChildrenIn(mode))
+                || (pageMode != null && pageMode.coversChildrenIn(mode));
     }
 
-    private void addDependencies(TransactionId dependent, Collection<TransactionId> dependees)
-            throws TransactionAbortedException {
-        dependencyGraph.putIfAbsent(dependent, new LinkedBlockingQueue<TransactionId>());
-        Collection<TransactionId> dependeesCollection = dependencyGraph.get(dependent);
-        boolean addedDependee = false;
-        for (TransactionId newDependee : dependees) {
-            if (!dependeesCollection.contains(newDependee) && !newDependee.equals(dependent)) {
-                addedDependee = true;
-                dependeesCollection.add(newDependee);
-            }
+    /**
+     * Replace the transaction's page locks on the table with a single table
+     * lock, if that can be granted without waiting.
+     */
+    private void escalate(TransactionId transactionId, TransactionLocks transactionLocks, int tableId) {
+        LockMode tableMode = transactionLocks.getTableMode(tableId);
+        // a transaction that holds IX has written pages of the table
+        LockMode mode = tableMode == LockMode.IS ? LockMode.S : LockMode.X;
+        LockState tableState = tryAcquire(transactionId, tableLocks, tableId, mode);
+        if (tableState == null) {
+            return;
         }
-        if (addedDependee) {
-            abortIfDeadlocked();
+        transactionLocks.addTable(tableId, tableState, getMode(tableState, transactionId));
+        for (LockState state : transactionLocks.removePages(tableId)) {
+            release(transactionId, state);
         }
+        escalations.incrementAndGet();
     }
 
-    private void abortIfDeadlocked() throws TransactionAbortedException {
-        Set<TransactionId> visitedTransactionIds = new HashSet<TransactionId>();
-        for (TransactionId transactionId : dependencyGraph.keySet()) {
-            if (!visitedTransactionIds.contains(transactionId)) {
-                testForDeadlock(transactionId, visitedTransactionIds, new Stack<TransactionId>());
+    /**
+     * Grant a lock without waiting, if it is compatible with the holders and
+     * with the requests queued ahead of it.
+     *
+     * @return the lock state, or null if the lock is not available
+     */
+    private <K> LockState tryAcquire(TransactionId transactionId, LockTable<K> lockTable, K key, LockMode mode) {
+        while (true) {
+            LockState state = lockTable.getOrCreate(key);
+            synchronized (state) {
+                if (state.removed) {
+                    continue;
+                }
+                LockMode held = state.getMode(transactionId);
+                if (held != null && held.covers(mode)) {
+                    return state;
+                }
+                LockMode requested = held == null ? mode : held.combine(mode);
+                if (!state.isGrantable(transactionId, requested)) {
+                    // an upgrade only has to wait for earlier upgrades
+                    LockRequest request = new LockRequest(transactionId, requested, held != null);
+                    state.enqueue(request);
+                    boolean blocked = !state.blockers(request).isEmpty();
+                    state.dequeue(request);
+                    if (blocked) {
+                        lockTable.removeIfUnused(state);
+                        return null;
+                    }
+                }
+                state.putHolder(transactionId, requested);
+                return state;
             }
         }
     }
 
-    private void testForDeadlock(TransactionId transactionId,
-                                 Set<TransactionId> visitedTransactionIds, Stack<TransactionId> parents)
+    /**
+     * Acquire a lock on a page, table or record, blocking until it is granted.
+     * A request nobody else holds an incompatible lock on or waits for is
+     * granted at once, without being queued.
+     *
+     * @return the lock state, in which the transaction now holds a mode that
+     *         covers the requested one
+     */
+    private <K> LockState acquire(TransactionId transactionId, LockTable<K> lockTable, K key, LockMode mode)
             throws TransactionAbortedException {
-        visitedTransactionIds.add(transactionId);
-        if (!dependencyGraph.containsKey(transactionId)) {
-            return;
+        LockState state;
+        LockRequest request;
+        while (true) {
+            state = lockTable.getOrCreate(key);
+            synchronized (state) {
+                if (state.removed) {
+                    continue;
+                }
+                LockMode held = state.getMode(transactionId);
+                if (held != null && held.covers(mode)) {
+                    return state;
+                }
+                LockMode requested = held == null ? mode : held.combine(mode);
+                if (state.isGrantable(transactionId, requested)) {
+                    state.putHolder(transactionId, requested);
+                    return state;
+                }
+                request = new LockRequest(transactionId, requested, held != null);
+                state.enqueue(request);
+                if (request.upgrade && state.getWaiterCount() > 1) {
+                    // requests queued behind the upgrade now wait for it as well
+                    state.notifyAll();
+                }
+                break;
+            }
         }
-        for (TransactionId dependee : dependencyGraph.get(transactionId)) {
-            if (parents.contains(dependee)) {
-                throw new TransactionAbortedException();
+        boolean granted = false;
+        long waitStart = 0;
+        long timeoutNanos = 0;
+        try {
+            while (!granted) {
+                List<TransactionId> victims = null;
+                synchronized (state) {
+                    Set<TransactionId> blockers = state.blockers(request);
+                    if (blockers.isEmpty()) {
+                        state.putHolder(transactionId, request.mode);
+                        granted = true;
+                        break;
+                    }
+                    if (waitStart == 0) {
+                        waitStart = System.nanoTime();
+                        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(getLockTimeout(transactionId));
+                        lockWaits.incrementAndGet();
+                        waitingOn.put(transactionId, state);
+                    }
+                    if (abortedWaiters.contains(transactionId) || wounded.contains(transactionId)) {
+                        throw new TransactionAbortedException();
+                    }
+                    long remainingNanos = waitStart + timeoutNanos - System.nanoTime();
+                    if (timeoutNanos != 0 && remainingNanos <= 0) {
+                        lockTimeouts.incrementAndGet();
+                        throw new TransactionAbortedException();
+                    }
+                    victims = resolveConflict(transactionId, blockers);
+                    if (victims.contains(transactionId)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (victims.isEmpty()) {
+                        try {
+                            if (timeoutNanos == 0) {
+                                state.wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(state, remainingNanos);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransactionAbortedException();
+                        }
+                    }
+                }
+                if (victims != null) {
+                    // outside of our own state, as a victim may wait on another
+                    for (TransactionId victim : victims) {
+                        abortWaiter(victim);
+                    }
+                }
             }
-            if (!visitedTransactionIds.contains(dependee)) {
-                parents.push(transactionId);
-                testForDeadlock(dependee, visitedTransactionIds, parents);
-                parents.pop();
+        } finally {
+            synchronized (state) {
+                state.dequeue(request);
+                if (waitStart != 0) {
+                    dependencyGraph.remove(transactionId);
+                    waitingOn.remove(transactionId);
+                    abortedWaiters.remove(transactionId);
+                }
+                if (!granted) {
+                    // requests queued behind this one may be grantable now
+                    state.notifyAll();
+                    lockTable.removeIfUnused(state);
+                }
+            }
+            if (waitStart != 0) {
+                long waitNanos = System.nanoTime() - waitStart;
+                lockWaitNanos.addAndGet(waitNanos);
+                addWaitNanos(key, waitNanos);
             }
         }
+        return state;
     }
 
-    private void addSharedUser(TransactionId transactionId, PageId pageId) {
-        if (!sharedLocks.containsKey(pageId)) {
-            sharedLocks.put(pageId, new ArrayList<TransactionId>());
+    /**
+     * Decide, under the deadlock policy, who has to abort so that transactionId
+     * can safely wait for blockers. Called with the monitor of the lock state
+     * held.
+     *
+     * @return the transactions to abort, which may include transactionId itself;
+     *         empty if it can just wait
+     */
+    private List<TransactionId> resolveConflict(TransactionId transactionId, Set<TransactionId> blockers) {
+        switch (deadlockPolicy) {
+        case WAIT_DIE:
+            // only older transactions may wait for younger ones
+            for (TransactionId blocker : blockers) {
+                if (blocker.getId() < transactionId.getId()) {
+                    deadlocks.incrementAndGet();
+                    return Collections.singletonList(transactionId);
+                }
+            }
+            return Collections.emptyList();
+        case WOUND_WAIT:
+            // only younger transactions may wait for older ones
+            List<TransactionId> woundedNow = new ArrayList<TransactionId>();
+            for (TransactionId blocker : blockers) {
+                // marked while the blocker is known to hold or wait for this
+                // page, so it is cleared when the blocker releases its locks
+                if (blocker.getId() > transactionId.getId() && wounded.add(blocker)) {
+                    deadlocks.incrementAndGet();
+                    woundedNow.add(blocker);
+                }
+            }
+            return woundedNow;
+        default:
+            TransactionId victim = waitFor(transactionId, blockers);
+            return victim == null ? Collections.<TransactionId>emptyList() : Collections.singletonList(victim);
         }
-        sharedLocks.get(pageId).add(transactionId);
     }
 
-    private Collection<TransactionId> getLockHolders(PageId pageId) {
-        Collection<TransactionId> lockHolders = new ArrayList<TransactionId>();
-        if (exclusiveLocks.containsKey(pageId)) {
-            lockHolders.add(exclusiveLocks.get(pageId));
-            return lockHolders;
+    /**
+     * Record that transactionId now waits for blockers and, if that closes a
+     * cycle in the waits-for graph, pick a victim to break it.
+     *
+     * @return the victim, or null if there is no deadlock
+     */
+    private TransactionId waitFor(TransactionId transactionId, Set<TransactionId> blockers) {
+        Set<TransactionId> previous = dependencyGraph.put(transactionId, blockers);
+        if (blockers.equals(previous)) {
+            return null;
         }
-        if (sharedLocks.containsKey(pageId)) {
-            lockHolders.addAll(sharedLocks.get(pageId));
+        List<TransactionId> cycle = findCycle(transactionId);
+        if (cycle == null) {
+            return null;
         }
-        return lockHolders;
+        deadlocks.incrementAndGet();
+        return pickVictim(transactionId, cycle);
     }
 
-    private boolean isLockedByOthers(TransactionId transactionId,
-                                     Collection<TransactionId> lockHolders) {
-        if (lockHolders == null || lockHolders.isEmpty()) {
-            return false;
-        }
-        if (lockHolders.size() == 1 && transactionId.equals(lockHolders.iterator().next())) {
-            return false;
+    /**
+     * Depth-first search of the waits-for graph from transactionId only: a new
+     * cycle has to pass through the edges it just added.
+     *
+     * @return the transactions of a cycle through transactionId, or null
+     */
+    private List<TransactionId> findCycle(TransactionId transactionId) {
+        Map<TransactionId, TransactionId> reachedFrom = new HashMap<TransactionId, TransactionId>();
+        Stack<TransactionId> toVisit = new Stack<TransactionId>();
+        toVisit.push(transactionId);
+        while (!toVisit.isEmpty()) {
+            TransactionId waiter = toVisit.pop();
+            Set<TransactionId> dependees = dependencyGraph.get(waiter);
+            if (dependees == null) {
+                continue;
+            }
+            for (TransactionId dependee : dependees) {
+                if (dependee.equals(transactionId)) {
+                    List<TransactionId> cycle = new ArrayList<TransactionId>();
+                    for (TransactionId member = waiter; member != null; member = reachedFrom.get(member)) {
+                        cycle.add(member);
+                    }
+                    return cycle;
+                }
+                if (!reachedFrom.containsKey(dependee)) {
+                    reachedFrom.put(dependee, waiter);
+                    toVisit.push(dependee);
+                }
+            }
         }
-        return true;
+        return null;
     }
 
-    private void addExclusiveUser(TransactionId transactionId, PageId pageId) {
-        exclusiveLocks.put(pageId, transactionId);
+    private TransactionId pickVictim(TransactionId requester, List<TransactionId> cycle) {
+        VictimPolicy policy = victimPolicy;
+        if (policy == VictimPolicy.REQUESTER) {
+            return requester;
+        }
+        LogFile logFile = policy == VictimPolicy.LEAST_LOG_WRITTEN ? Database.getLogFile() : null;
+        TransactionId victim = null;
+        long victimLogBytes = 0;
+        for (TransactionId member : cycle) {
+            long logBytes = logFile == null ? 0 : logFile.getLogBytesWritten(member);
+            if (victim == null || logBytes < victimLogBytes
+                    || (logBytes == victimLogBytes && member.getId() > victim.getId())) {
+                victim = member;
+                victimLogBytes = logBytes;
+            }
+        }
+        return victim;
     }
 
-    public boolean acquireReadWriteLock(TransactionId transactionId, PageId pageId)
-            throws TransactionAbortedException {
-        Object lock = getLock(pageId);
-        while (true) {
-            synchronized (lock) {
-                Collection<TransactionId> lockHolders = getLockHolders(pageId);
-                if (!isLockedByOthers(transactionId, lockHolders)) {
-                    removeDependencies(transactionId);
-                    addExclusiveUser(transactionId, pageId);
-                    return true;
-                }
-                addDependencies(transactionId, lockHolders);
+    /**
+     * Make the lock request a deadlock victim is waiting on fail. Nothing
+     * happens if the victim stopped waiting in the meantime.
+     */
+    private void abortWaiter(TransactionId victim) {
+        LockState state = waitingOn.get(victim);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (waitingOn.get(victim) == state) {
+                abortedWaiters.add(victim);
+                state.notifyAll();
             }
         }
     }
 
-    private void releaseLock(TransactionId transactionId, PageId pageId) {
-        Object lock = getLock(pageId);
-        synchronized (lock) {
-            exclusiveLocks.remove(pageId);
-            if (sharedLocks.containsKey(pageId)) {
-                sharedLocks.get(pageId).remove(transactionId);
+    private static void release(TransactionId transactionId, LockState state) {
+        synchronized (state) {
+            state.removeHolder(transactionId);
+            if (state.hasWaiters()) {
+                state.notifyAll();
             }
+            state.lockTable.removeIfUnused(state);
         }
     }
 
+    /**
+     * Release the transaction's lock on the page before it completes. A page
+     * covered by a lock on its table stays locked.
+     */
     public void releasePage(TransactionId transactionId, PageId pageId) {
-        releaseLock(transactionId, pageId);
-        if (pageIdsLockedByTransaction.containsKey(transactionId)) {
-            pageIdsLockedByTransaction.get(transactionId).remove(pageId);
+        TransactionLocks transactionLocks = locksByTransaction.get(transactionId);
+        LockState state = transactionLocks == null ? null : transactionLocks.removePage(pageId);
+        if (state != null) {
+            release(transactionId, state);
         }
     }
 
     public void releasePages(TransactionId transactionId) {
-        if (pageIdsLockedByTransaction.containsKey(transactionId)) {
-            Collection<PageId> pageIds = pageIdsLockedByTransaction.get(transactionId);
-            for (PageId pageId : pageIds) {
-                releaseLock(transactionId, pageId);
+        TransactionLocks transactionLocks = locksByTransaction.remove(transactionId);
+        if (transactionLocks != null) {
+            synchronized (transactionLocks) {
+                for (Map<PageId, LockState> pages : transactionLocks.pagesByTable.values()) {
+                    for (LockState state : pages.values()) {
+                        release(transactionId, state);
+                    }
+                }
+                for (LockState state : transactionLocks.records.values()) {
+                    release(transactionId, state);
+                }
+                for (LockState state : transactionLocks.tables.values()) {
+                    release(transactionId, state);
+                }
             }
-            pageIdsLockedByTransaction.replace(transactionId, new LinkedBlockingQueue<PageId>());
         }
+        wounded.remove(transactionId);
+        transactionLockTimeouts.remove(transactionId);
     }
 
-    public boolean holdsLock(TransactionId transactionId, PageId pageId) {
-        if (!pageIdsLockedByTransaction.containsKey(transactionId)) {
+    /** Add the time a request waited to its page, or record's page, and table. */
+    private void addWaitNanos(Object key, long waitNanos) {
+        PageId pageId = null;
+        if (key instanceof RecordId) {
+            pageId = ((RecordId) key).getPageId();
+        } else if (key instanceof PageId) {
+            pageId = (PageId) key;
+        }
+        int tableId;
+        if (pageId != null) {
+            addNanos(pageWaitNanos, pageId, waitNanos);
+            tableId = pageId.getTableId();
+        } else {
+            tableId = (Integer) key;
+        }
+        addNanos(tableWaitNanos, tableId, waitNanos);
+    }
+
+    private static <K> void addNanos(ConcurrentMap<K, AtomicLong> nanosByKey, K key, long nanos) {
+        AtomicLong total = nanosByKey.get(key);
+        if (total == null) {
+            AtomicLong newTotal = new AtomicLong(0);
+            total = nanosByKey.putIfAbsent(key, newTotal);
+            if (total == null) {
+                total = newTotal;
+            }
+        }
+        total.addAndGet(nanos);
+    }
+
+    /**
+     * @return whether some transaction may write the page: it holds an
+     *         exclusive lock on the page or its whole table, or is writing
+     *         records of the page.
+     */
+    public boolean isWriteLocked(PageId pageId) {
+        LockState state = locks.get(pageId);
+        if (state != null) {
+            synchronized (state) {
+                if (state.isHeldIn(LockMode.X) || state.isHeldIn(LockMode.IX) || state.isHeldIn(LockMode.SIX)) {
+                    return true;
+                }
+            }
+        }
+        state = tableLocks.get(pageId.getTableId());
+        if (state == null) {
             return false;
         }
-        return pageIdsLockedByTransaction.get(transactionId).contains(pageId);
+        synchronized (state) {
+            return state.isHeldIn(LockMode.X);
+        }
+    }
+
+    public boolean holdsLock(TransactionId transactionId, PageId pageId) {
+        if (getMode(locks.get(pageId), transactionId) != null) {
+            return true;
+        }
+        LockMode tableMode = getMode(tableLocks.get(pageId.getTableId()), transactionId);
+        return tableMode != null && tableMode.covers(LockMode.S);
+    }
+
+    /**
+     * @return the mode in which the transaction holds the table, or null if it
+     *         does not hold a lock on it.
+     */
+    public LockMode getTableLockMode(TransactionId transactionId, int tableId) {
+        return getMode(tableLocks.get(tableId), transactionId);
+    }
+
+    private static LockMode getMode(LockState state, TransactionId transactionId) {
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return state.getMode(transactionId);
+        }
+    }
+
+    /**
+     * @return the number of records, pages and tables some transaction holds or
+     *         waits for a lock on.
+     */
+    public int getLockTableSize() {
+        return recordLocks.size() + locks.size() + tableLocks.size();
+    }
+
+    /** @return the number of lock requests that had to wait. */
+    public long getLockWaitCount() {
+        return lockWaits.get();
+    }
+
+    /** @return the total time lock requests spent waiting, in nanoseconds. */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.get();
+    }
+
+    /** @return the number of lock requests that failed as they waited past their timeout. */
+    public long getLockTimeoutCount() {
+        return lockTimeouts.get();
+    }
+
+    /**
+     * @return the total time lock requests on the page, or on records of it,
+     *         spent waiting, in nanoseconds.
+     */
+    public long getPageLockWaitNanos(PageId pageId) {
+        AtomicLong total = pageWaitNanos.get(pageId);
+        return total == null ? 0 : total.get();
+    }
+
+    /**
+     * @return the total time lock requests on the table, or on pages or
+     *         records of it, spent waiting, in nanoseconds.
+     */
+    public long getTableLockWaitNanos(int tableId) {
+        AtomicLong total = tableWaitNanos.get(tableId);
+        return total == null ? 0 : total.get();
+    }
+
+    /**
+     * @return at most the given number of pages that lock requests waited on
+     *         longest, longest first
+     */
+    public List<PageId> getHotPages(int numberOfPages) {
+        final Map<PageId, Long> nanosByPage = new HashMap<PageId, Long>();
+        for (Map.Entry<PageId, AtomicLong> entry : pageWaitNanos.entrySet()) {
+            nanosByPage.put(entry.getKey(), entry.getValue().get());
+        }
+        List<PageId> pageIds = new ArrayList<PageId>(nanosByPage.keySet());
+        Collections.sort(pageIds, new Comparator<PageId>() {
+//            @Override
+            public int compare(PageId a, PageId b) {
+                return nanosByPage.get(b).compareTo(nanosByPage.get(a));
+            }
+        });
+        return pageIds.subList(0, Math.min(numberOfPages, pageIds.size()));
+    }
+
+    /**
+     * @return the number of deadlocks found or, under a prevention policy, the
+     *         number of transactions made to abort.
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock. */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Set the number of page locks on one table a transaction may hold before
+     * they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /** @return how long a lock request waits before it fails, in ms; NO_TIMEOUT if it waits on. */
+    public long getLockTimeout() {
+        return lockTimeoutMillis;
+    }
+
+    /**
+     * Set how long lock requests wait before their transaction is aborted, for
+     * all transactions without a timeout of their own.
+     *
+     * @param lockTimeoutMillis the timeout in ms, or NO_TIMEOUT to wait until
+     *          the lock is granted
+     */
+    public void setLockTimeout(long lockTimeoutMillis) {
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    /** @return the lock timeout that applies to the transaction, in ms */
+    public long getLockTimeout(TransactionId transactionId) {
+        Long transactionLockTimeout = transactionLockTimeouts.get(transactionId);
+        return transactionLockTimeout == null ? lockTimeoutMillis : transactionLockTimeout;
+    }
+
+    /**
+     * Set the lock timeout of one transaction, overriding the global one until
+     * the transaction releases its locks.
+     *
+     * @param lockTimeoutMillis the timeout in ms, or NO_TIMEOUT to wait until
+     *          the lock is granted
+     */
+    public void setLockTimeout(TransactionId transactionId, long lockTimeoutMillis) {
+        transactionLockTimeouts.put(transactionId, lockTimeoutMillis);
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return deadlockPolicy;
+    }
+
+    /**
+     * Set how deadlocks are dealt with. Each database has a single
+     * LockManager, so this applies to the whole database; set it while no
+     * transaction is running.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy deadlockPolicy) {
+        this.deadlockPolicy = deadlockPolicy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Set how deadlock victims are picked; the default is the youngest transaction. */
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
     }
-}
\ No newline at end of file
+}
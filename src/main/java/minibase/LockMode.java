@@ -0,0 +1,78 @@
+package minibase;
+
+/**
+ * The modes of a lock in the {@link LockManager}'s lock hierarchy of tables,
+ * pages and records. A lock in IS or IX mode announces that the transaction
+ * locks some children, e.g. pages of a table, in S or X mode; S and X lock the
+ * node with everything below it, and SIX reads everything below the node while
+ * writing some of its children. Records are locked in S or X mode.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: a lock in mode a can be granted while another
+    // transaction holds one in mode b
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return whether holding this mode grants everything the other does. */
+    public boolean covers(LockMode other) {
+        if (this == other || this == X) {
+            return true;
+        }
+        switch (other) {
+        case IS:
+            return true;
+        case IX:
+        case S:
+            return this == SIX;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the mode in which a lock in this mode implicitly locks everything
+     *         below it, e.g. the pages of a table: S for S and SIX, X for X,
+     *         null for the intention modes, which lock nothing below them.
+     */
+    public LockMode getImpliedChildMode() {
+        switch (this) {
+        case S:
+        case SIX:
+            return S;
+        case X:
+            return X;
+        default:
+            return null;
+        }
+    }
+
+    /** @return whether a lock in this mode implicitly locks its children in the given mode. */
+    public boolean coversChildrenIn(LockMode childMode) {
+        LockMode impliedChildMode = getImpliedChildMode();
+        return impliedChildMode != null && impliedChildMode.covers(childMode);
+    }
+
+    /** @return the weakest mode that covers both this mode and the other. */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // the only modes neither of which covers the other are S and IX
+        return SIX;
+    }
+}
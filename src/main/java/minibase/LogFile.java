@@ -1,13 +1,18 @@
 package minibase;
 
 //import javax.xml.crypto.Data;
-import java.io.EOFException;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  LogFile implements the recovery subsystem of minibase.  This class is
@@ -19,8 +24,8 @@ import java.util.*;
  Many of the methods here are synchronized (to prevent concurrent log
  writes from happening); many of the methods in BufferPool are also
  synchronized (for similar reasons.)  Problem is that BufferPool writes
- log records (on page flushed) and the log file flushes BufferPool
- pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+ log records (on page flushed) and the log file reads and writes BufferPool
+ pages (on checkpoints, rollback and recovery.)  This can lead to deadlock.  For
  that reason, any LogFile operation that needs to access the BufferPool
  must not be declared synchronized and must begin with a block like:
  <p>
@@ -31,6 +36,34 @@ import java.util.*;
  }
  }
  </pre>
+ <p>
+ Records are not written to the file one field at a time, but appended to an
+ in-memory log buffer under the log's lock, which is a copy into memory. Every
+ record is addressed by its log sequence number (LSN), its position in the
+ log since it was created, which stays the same when the log is truncated.
+ {@link #flushUpTo} makes the log durable up to a given record, as write-ahead
+ logging requires before a page is written. There are two buffers: while one
+ is written to the file in a single sequential write, records are appended
+ to the other. A full buffer is written by the transaction that fills it.
+ <p>
+ Commits are made durable by {@link GroupCommit}: a committer appends its
+ commit record under the log's lock, then waits outside of it for a flusher
+ thread that writes and forces the log once for all committers waiting by
+ then. Forcing does not take the log's lock, so transactions keep appending
+ meanwhile.
+ <p>
+ Recovery follows ARIES. The buffer pool may write out pages of running
+ transactions (STEAL), and commits write only the log (NO-FORCE), so the
+ pages on disk may lack committed changes and hold uncommitted ones. Every
+ page carries the LSN of its last change, and checkpoints record the dirty
+ page table, the LSN from which on each dirty page has changes that are not
+ on disk. {@link #recover} analyzes the log from the last checkpoint on to
+ find the transactions that did not finish and the pages that may be out of
+ date, redoes every change those pages lack, the changes of unfinished
+ transactions included, and then rolls the unfinished transactions back.
+ Rolling back a change appends a compensation log record (CLR) with the
+ bytes it restored, which is redone like any change but never undone, so
+ that a rollback interrupted by a crash continues where it stopped.
  */
 
 /**
@@ -39,8 +72,10 @@ import java.util.*;
  *
  * <ul>
  *
- * <li>The first long integer of the file represents the offset of the last
- * written checkpoint, or -1 if there are no checkpoints
+ * <li>The file starts with a header of two long integers: the LSN of the last
+ * written checkpoint, or -1 if there are no checkpoints, and the LSN of the
+ * first record after the header. The LSN of every later byte follows from its
+ * offset in the file.
  *
  * <li>All additional data in the log consists of log records. Log records are
  * variable length.
@@ -48,23 +83,40 @@ import java.util.*;
  * <li>Each log record begins with an integer type and a long integer
  * transaction id.
  *
- * <li>Each log record ends with a long integer file offset representing the
- * position in the log file where the record began.
+ * <li>Each log record ends with a long integer LSN, that of the record itself.
  *
- * <li>There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and CHECKPOINT
+ * <li>There are eight record types: ABORT, COMMIT, UPDATE, BEGIN, CHECKPOINT,
+ * INSERT, DELETE and CLR
  *
  * <li>ABORT, COMMIT, and BEGIN records contain no additional data
  *
- * <li>UPDATE RECORDS consist of two entries, a before image and an after image.
- * These images are serialized Page objects, and can be accessed with the
- * LogFile.readPageData() and LogFile.writePageData() methods. See
- * LogFile.print() for an example.
+ * <li>UPDATE RECORDS consist of the page and the bytes of it the update
+ * changed. The page is a byte tag for its type, HEAP_PAGE, followed by the
+ * table id and page number. The changed bytes are an integer count of runs of
+ * changed bytes, then for each run its integer offset and length, the bytes
+ * before and the bytes after the update. The runs are taken against the page
+ * as last logged, so that redoing the updates of a page in log order yields
+ * its after image, and undoing them in reverse order its before image. See
+ * LogFile.writeDelta() and LogFile.readUpdate().
+ *
+ * <li>INSERT and DELETE records are logged by a HeapPage as a tuple is
+ * inserted or deleted. They consist of the page, as in UPDATE records, the
+ * integer slot of the tuple, the integer length of a tuple, and the bytes of
+ * the inserted or deleted tuple. A page whose changes were all logged
+ * this way needs no UPDATE record when it is written. See
+ * LogFile.readSlotChange().
+ *
+ * <li>CLR records consist of the long integer LSN of the record of the
+ * transaction they compensate, the page, and the runs of bytes the rollback
+ * restored, in the format of UPDATE records without the bytes before.
  *
  * <li>CHECKPOINT records consist of active transactions at the time the
- * checkpoint was taken and their first log record on disk. The format of the
- * record is an integer count of the number of transactions, as well as a long
- * integer transaction id and a long integer first record offset for each active
- * transaction.
+ * checkpoint was taken and their first log record on disk, and of the dirty
+ * pages of the buffer pool. The format of the record is an integer count of
+ * the number of transactions, as well as a long integer transaction id and a
+ * long integer first record LSN for each active transaction, then an integer
+ * count of the number of dirty pages, and the page and the long integer
+ * recovery LSN (see Page.getRecoveryLsn()) of each.
  *
  * </ul>
  */
@@ -72,7 +124,8 @@ import java.util.*;
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private volatile RandomAccessFile raf; // replaced under this on truncation
+    private final GroupCommit groupCommit;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -80,16 +133,49 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
+    static final int CLR_RECORD = 9;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    /** Size of each of the two log buffers, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    /** Size of the buffer records are read through on rollback and recovery. */
+    static final int READ_BUFFER_SIZE = 1 << 16;
 
-    long currentOffset = -1;// protected by this
+    /** Tag of pages of a HeapFile in update records. */
+    static final byte HEAP_PAGE = 1;
+    /**
+     * Runs of changed bytes closer than this are logged as one, as every run
+     * costs an offset and a length.
+     */
+    static final int MIN_GAP = 2 * INT_SIZE;
+
+    // all protected by this
+    private long startLsn; // LSN of the first record after the header
+    private ByteBuffer buffer; // records appended since the last write
+    private ByteBuffer spare; // null while it is being written
+    private long bufferLsn; // LSN of the first byte of the buffer
+    // set while the spare buffer is being written outside of the lock; waiting
+    // for it must not release the lock, so it is not done with wait()
+    private volatile CountDownLatch pendingWrite;
     // int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
+    // after image of the last update record of pages flushed by transactions
+    // that have not completed yet, whose before images lag behind the pages
+    // on disk until then
+    private final Map<PageId, LoggedImage> loggedImages = new HashMap<PageId, LoggedImage>();
+    // first change of live transactions, those that logged no BEGIN record
+    // included, which the buffer pool rolls back when it aborts them directly
+    private final Map<Long, Long> tidToFirstChange = new HashMap<Long, Long>();
+    // bytes of update records of live transactions; read without the log's lock
+    final Map<Long, Long> tidToLogBytes = new ConcurrentHashMap<Long, Long>();
 
     /**
      * Constructor. Initialize and back the log file with the specified file.
@@ -106,6 +192,15 @@ public class LogFile {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = Boolean.TRUE;
+        groupCommit = new GroupCommit(this);
+        buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        spare = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        startLsn = HEADER_SIZE;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            startLsn = raf.readLong();
+        }
+        bufferLsn = startLsn + Math.max(0, raf.length() - HEADER_SIZE);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -125,11 +220,16 @@ public class LogFile {
         totalRecords++;
         if (recoveryUndecided.booleanValue()) {
             recoveryUndecided = Boolean.FALSE;
-            raf.seek(0);
+            // LSNs go on from those of the old log, so that they stay larger
+            // than the page LSNs of the pages on disk
+            long lsn = bufferLsn;
             raf.setLength(0);
+            raf.seek(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            raf.writeLong(lsn);
+            startLsn = lsn;
+            bufferLsn = lsn;
+            buffer.clear();
         }
     }
 
@@ -137,6 +237,158 @@ public class LogFile {
         return totalRecords;
     }
 
+    /** @return the file offset of the given LSN; called under this */
+    private long position(long lsn) {
+        return lsn - startLsn + HEADER_SIZE;
+    }
+
+    /** @return the LSN of the given file offset; called under this */
+    private long lsnAt(long position) {
+        return position - HEADER_SIZE + startLsn;
+    }
+
+    /** @return the LSN the next record appended gets; called under this */
+    private long currentLsn() {
+        return bufferLsn + buffer.position();
+    }
+
+    /** @return the LSN the next record appended gets. */
+    public synchronized long getCurrentLsn() {
+        return currentLsn();
+    }
+
+    private void appendInt(int value) throws IOException {
+        if (buffer.remaining() < INT_SIZE) {
+            writeBuffer();
+        }
+        buffer.putInt(value);
+    }
+
+    private void appendLong(long value) throws IOException {
+        if (buffer.remaining() < LONG_SIZE) {
+            writeBuffer();
+        }
+        buffer.putLong(value);
+    }
+
+    private void appendByte(byte value) throws IOException {
+        if (!buffer.hasRemaining()) {
+            writeBuffer();
+        }
+        buffer.put(value);
+    }
+
+    private void appendBytes(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            int chunk = Math.min(buffer.remaining(), end - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    /**
+     * Wait, under this, until no buffer is being written outside of the lock.
+     * Keeps the lock, as it may be called in the middle of appending a record.
+     */
+    private void awaitWrite() {
+        CountDownLatch write = pendingWrite;
+        if (write == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                write.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Write the buffered records to the file while holding the log's lock, e.g.
+     * because the buffer is full or the caller is about to read the file.
+     */
+    private void writeBuffer() throws IOException {
+        awaitWrite();
+        if (buffer.position() == 0) {
+            return;
+        }
+        long lsn = bufferLsn;
+        buffer.flip();
+        writeFully(raf.getChannel(), buffer, position(lsn));
+        bufferLsn = lsn + buffer.limit();
+        buffer.clear();
+    }
+
+    /**
+     * Write the records appended so far to the file, without holding the
+     * log's lock while writing: appends go to the other buffer meanwhile.
+     *
+     * @return the LSN up to which the log has been written
+     */
+    long writeAppended() throws IOException {
+        ByteBuffer full;
+        long position;
+        long end;
+        FileChannel channel;
+        CountDownLatch write = new CountDownLatch(1);
+        synchronized (this) {
+            awaitWrite();
+            if (buffer.position() == 0) {
+                return bufferLsn;
+            }
+            full = buffer;
+            position = position(bufferLsn);
+            channel = raf.getChannel();
+            buffer = spare;
+            spare = null;
+            bufferLsn += full.position();
+            end = bufferLsn;
+            pendingWrite = write;
+        }
+        try {
+            full.flip();
+            writeFully(channel, full, position);
+            return end;
+        } finally {
+            // the lock is not taken again: its holder may be waiting for this
+            full.clear();
+            spare = full;
+            pendingWrite = null;
+            write.countDown();
+        }
+    }
+
+    /**
+     * Make the log durable up to and including the record with the given
+     * LSN. Waits for the group commit flusher, unless the caller holds the
+     * log's lock, which the flusher needs; then it writes and forces the log
+     * itself.
+     */
+    public void flushUpTo(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            writeBuffer();
+            force();
+            return;
+        }
+        groupCommit.awaitForce(lsn);
+    }
+
     /**
      * Write an abort record to the log for the specified tid, force the log to
      * disk, and perform a rollback
@@ -147,7 +399,11 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
+        long lsn;
         synchronized (Database.getBufferPool()) {
+            // under record-level locking, the changes are undone on the
+            // pages, which take their latches before the log
+            boolean undone = Database.getBufferPool().undoRecordChanges(tid);
 
             synchronized (this) {
                 preAppend();
@@ -156,143 +412,484 @@ public class LogFile {
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+                if (!undone) {
+                    rollback(Collections.singleton(tid.getId()));
+                }
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(new Long(tid.getId()));
+                lsn = currentLsn();
+                appendInt(ABORT_RECORD);
+                appendLong(tid.getId());
+                appendLong(lsn);
+                tidToFirstLogRecord.remove(Long.valueOf(tid.getId()));
+                tidToFirstChange.remove(Long.valueOf(tid.getId()));
+                tidToLogBytes.remove(Long.valueOf(tid.getId()));
             }
         }
+        flushUpTo(lsn);
     }
 
     /**
-     * Write a commit record to disk for the specified tid, and force the log to
-     * disk.
+     * Write a commit record to disk for the specified tid, and wait until the
+     * log is forced to disk along with the commit records of other
+     * transactions committing at the same time.
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        // should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            // should we verify that this is a live transaction?
+
+            lsn = currentLsn();
+            appendInt(COMMIT_RECORD);
+            appendLong(tid.getId());
+            appendLong(lsn);
+            tidToFirstLogRecord.remove(Long.valueOf(tid.getId()));
+            tidToFirstChange.remove(Long.valueOf(tid.getId()));
+            tidToLogBytes.remove(Long.valueOf(tid.getId()));
+        }
+        flushUpTo(lsn);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(new Long(tid.getId()));
+    /** @return the group commit that forces the log for committers. */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
     }
 
     /**
-     * Write an UPDATE record to disk for the specified tid and page (with
-     * provided before and after images.)
+     * Write an UPDATE record to the log for the specified tid and page (with
+     * provided before and after images.) The record is only buffered; call
+     * {@link #flushUpTo} with its LSN before writing the page. Sets the page
+     * LSN of the after image, under the log's lock, so that a checkpoint finds
+     * the page dirty if it finds the record in the log.
      *
      * @param tid The transaction performing the write
      * @param before The before image of the page
      * @param after The after image of the page
+     * @return the LSN of the record
      * @see minibase.Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before, Page after) throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+    public synchronized long logWrite(TransactionId tid, Page before, Page after) throws IOException {
         preAppend();
+        long lsn = currentLsn();
+        Debug.log("WRITE, LSN = " + lsn);
     /*
      * update record conists of
      *
-     * record type transaction id before page data (see writePageData) after
-     * page data start offset
+     * record type transaction id page (see writePageId) changed bytes (see
+     * writeDelta) start LSN
      */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        PageId pid = after.getId();
+        byte[] afterData = after.getPageData();
+        LoggedImage logged = loggedImages.get(pid);
+        byte[] beforeData = logged == null ? before.getPageData() : logged.data;
+
+        appendInt(UPDATE_RECORD);
+        appendLong(tid.getId());
+        writePageId(pid);
+        writeDelta(beforeData, afterData, true);
+        appendLong(lsn);
+        loggedImages.put(pid, new LoggedImage(tid.getId(), afterData));
+        after.setLsn(lsn);
+
+        countChange(tid, lsn);
+        Debug.log("WRITE END LSN = " + currentLsn());
+        return lsn;
+    }
 
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /**
+     * Write an INSERT record to the log for a tuple inserted into the given
+     * slot of a page. Like {@link #logWrite}, the record is only buffered, and
+     * the page LSN is set.
+     *
+     * @param tuple the bytes of the inserted tuple
+     * @return the LSN of the record
+     */
+    public long logInsert(TransactionId tid, HeapPage page, int slot, byte[] tuple) throws IOException {
+        return logSlotChange(INSERT_RECORD, tid, page, slot, tuple);
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /**
+     * Write a DELETE record to the log for the tuple deleted from the given
+     * slot of a page. Like {@link #logWrite}, the record is only buffered, and
+     * the page LSN is set.
+     *
+     * @param tuple the bytes of the deleted tuple
+     * @return the LSN of the record
+     */
+    public long logDelete(TransactionId tid, HeapPage page, int slot, byte[] tuple) throws IOException {
+        return logSlotChange(DELETE_RECORD, tid, page, slot, tuple);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    private synchronized long logSlotChange(int recordType, TransactionId tid, HeapPage page, int slot,
+            byte[] tuple) throws IOException {
+        preAppend();
+        long lsn = currentLsn();
+        appendInt(recordType);
+        appendLong(tid.getId());
+        writePageId(page.getId());
+        appendInt(slot);
+        appendInt(tuple.length);
+        appendBytes(tuple, 0, tuple.length);
+        appendLong(lsn);
+        page.logged(lsn);
+
+        countChange(tid, lsn);
+        return lsn;
+    }
 
-        // page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Account for a change record of a live transaction. */
+    private void countChange(TransactionId tid, long lsn) {
+        Long id = Long.valueOf(tid.getId());
+        if (!tidToFirstChange.containsKey(id)) {
+            tidToFirstChange.put(id, Long.valueOf(lsn));
+        }
+        Long logBytes = tidToLogBytes.get(id);
+        tidToLogBytes.put(id, Long.valueOf((logBytes == null ? 0 : logBytes.longValue()) + currentLsn() - lsn));
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /**
+     * @return the number of bytes of update records the live transaction has
+     *         written to the log so far. Does not take the log's lock.
+     */
+    public long getLogBytesWritten(TransactionId tid) {
+        Long logBytes = tidToLogBytes.get(Long.valueOf(tid.getId()));
+        return logBytes == null ? 0 : logBytes.longValue();
+    }
+
+    /**
+     * Forget the images logged for the pages the transaction flushed, once it
+     * has completed and the before images of the pages are those on disk.
+     */
+    public synchronized void transactionCompleted(TransactionId tid) {
+        tidToFirstChange.remove(Long.valueOf(tid.getId()));
+        Iterator<LoggedImage> images = loggedImages.values().iterator();
+        while (images.hasNext()) {
+            if (images.next().tid == tid.getId()) {
+                images.remove();
+            }
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** The after image of the last update record of a page. */
+    private static class LoggedImage {
+        final long tid;
+        final byte[] data;
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        LoggedImage(long tid, byte[] data) {
+            this.tid = tid;
+            this.data = data;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        // Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +
-        // pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    void writePageId(PageId pid) throws IOException {
+        if (!(pid instanceof HeapPageId)) {
+            throw new IOException("cannot log pages of " + pid.getClass().getName());
+        }
+        appendByte(HEAP_PAGE);
+        appendInt(pid.getTableId());
+        appendInt(pid.pageNumber());
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    PageId readPageId(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        if (tag != HEAP_PAGE) {
+            throw new IOException("unknown page tag " + tag);
+        }
+        int tableId = in.readInt();
+        return new HeapPageId(tableId, in.readInt());
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = new Integer(raf.readInt());
+    /**
+     * Append the runs of bytes that differ between the two images of a page,
+     * each as its offset, its length, its bytes before and its bytes after.
+     * Runs less than {@link #MIN_GAP} apart are merged.
+     *
+     * @param undoable whether to append the bytes before, which CLR records
+     *          leave out
+     */
+    void writeDelta(byte[] before, byte[] after, boolean undoable) throws IOException {
+        List<Integer> runs = new ArrayList<Integer>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < after.length && i - end < MIN_GAP; i++) {
+                if (before[i] != after[i]) {
+                    end = i + 1;
+                }
             }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
+            runs.add(start);
+            runs.add(end - start);
+            i = end;
+        }
+        appendInt(runs.size() / 2);
+        for (int run = 0; run < runs.size(); run += 2) {
+            int offset = runs.get(run);
+            int length = runs.get(run + 1);
+            appendInt(offset);
+            appendInt(length);
+            if (undoable) {
+                appendBytes(before, offset, length);
+            }
+            appendBytes(after, offset, length);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** A change to the bytes of a page, as read back from the log. */
+    abstract static class PageChange {
+        final PageId pageId;
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); // read before image
+        PageChange(PageId pageId) {
+            this.pageId = pageId;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        /** Apply the change to the bytes of the page. */
+        abstract void redo(byte[] data);
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+        /** Take the change back from the bytes of the page. */
+        abstract void undo(byte[] data);
+    }
 
-            // Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " +
-            // newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** The bytes of a page an update record changed. */
+    static class PageDelta extends PageChange {
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        PageDelta(PageId pageId, int runs) {
+            super(pageId);
+            this.offsets = new int[runs];
+            this.before = new byte[runs][];
+            this.after = new byte[runs][];
+        }
+
+        void redo(byte[] data) {
+            for (int i = 0; i < offsets.length; i++) {
+                System.arraycopy(after[i], 0, data, offsets[i], after[i].length);
+            }
+        }
+
+        void undo(byte[] data) {
+            for (int i = 0; i < offsets.length; i++) {
+                if (before[i] == null) {
+                    throw new IllegalStateException("compensation records are never undone");
+                }
+                System.arraycopy(before[i], 0, data, offsets[i], before[i].length);
+            }
+        }
+    }
+
+    /** Read the body of an update record, after its type and transaction id. */
+    PageDelta readUpdate(DataInput in) throws IOException {
+        return readDelta(readPageId(in), in, true);
+    }
+
+    /**
+     * Read the runs of bytes written by {@link #writeDelta}. Without the bytes
+     * before, the change cannot be undone.
+     */
+    PageDelta readDelta(PageId pid, DataInput in, boolean undoable) throws IOException {
+        PageDelta delta = new PageDelta(pid, in.readInt());
+        for (int i = 0; i < delta.offsets.length; i++) {
+            delta.offsets[i] = in.readInt();
+            int length = in.readInt();
+            if (undoable) {
+                delta.before[i] = new byte[length];
+                in.readFully(delta.before[i]);
+            }
+            delta.after[i] = new byte[length];
+            in.readFully(delta.after[i]);
+        }
+        return delta;
+    }
+
+    /**
+     * The tuple an INSERT or DELETE record changed. Besides the
+     * bytes of the tuple, an insert sets and a delete clears the bit of the
+     * slot in the header of the page; the slot of a deleted tuple is zeroed,
+     * as HeapPage.getPageData() leaves empty slots.
+     */
+    static class SlotChange extends PageChange {
+        final int slot;
+        final int offset;
+        final boolean usedBefore;
+        final boolean usedAfter;
+        final byte[] before;
+        final byte[] after;
+
+        SlotChange(PageId pageId, int slot, int offset, boolean usedBefore, byte[] before,
+                boolean usedAfter, byte[] after) {
+            super(pageId);
+            this.slot = slot;
+            this.offset = offset;
+            this.usedBefore = usedBefore;
+            this.before = before;
+            this.usedAfter = usedAfter;
+            this.after = after;
+        }
+
+        void redo(byte[] data) {
+            apply(data, usedAfter, after);
+        }
+
+        void undo(byte[] data) {
+            apply(data, usedBefore, before);
+        }
+
+        private void apply(byte[] data, boolean used, byte[] tuple) {
+            HeapPage.setSlotUsed(data, slot, used);
+            System.arraycopy(tuple, 0, data, offset, tuple.length);
+        }
+    }
+
+    /**
+     * Read the body of an INSERT or DELETE record, after its type
+     * and transaction id.
+     */
+    SlotChange readSlotChange(int recordType, DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int slot = in.readInt();
+        int offset = HeapPage.getSlotOffset(Database.getCatalog().getTupleDesc(pid.getTableId()), slot);
+        byte[] tuple = new byte[in.readInt()];
+        in.readFully(tuple);
+        if (recordType == INSERT_RECORD) {
+            return new SlotChange(pid, slot, offset, false, new byte[tuple.length], true, tuple);
+        }
+        return new SlotChange(pid, slot, offset, true, tuple, false, new byte[tuple.length]);
+    }
+
+    /**
+     * A log record, as read back from the log. Only the fields of its type
+     * are set.
+     */
+    static class LogRecord {
+        long lsn;
+        int type;
+        long tid;
+        // the change of a record that changes a page, CLRs included
+        PageChange change;
+        // the LSN of the record a CLR compensates
+        long compensatedLsn;
+        // the active transactions and dirty pages of a checkpoint
+        Map<Long, Long> transactions;
+        Map<PageId, Long> dirtyPages;
+    }
+
+    /** Read the record at the position of the log, which is called under this. */
+    private LogRecord readRecord(LogInputStream log, DataInputStream in) throws IOException {
+        LogRecord record = new LogRecord();
+        record.lsn = lsnAt(log.position());
+        record.type = in.readInt();
+        record.tid = in.readLong();
+        switch (record.type) {
+            case UPDATE_RECORD:
+                record.change = readUpdate(in);
+                break;
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                record.change = readSlotChange(record.type, in);
+                break;
+            case CLR_RECORD:
+                record.compensatedLsn = in.readLong();
+                record.change = readDelta(readPageId(in), in, false);
+                break;
+            case CHECKPOINT_RECORD:
+                record.transactions = new HashMap<Long, Long>();
+                int numActiveTransactions = in.readInt();
+                for (int i = 0; i < numActiveTransactions; ++i) {
+                    long tid = in.readLong();
+                    record.transactions.put(tid, in.readLong());
+                }
+                record.dirtyPages = new HashMap<PageId, Long>();
+                int numDirtyPages = in.readInt();
+                for (int i = 0; i < numDirtyPages; ++i) {
+                    PageId pid = readPageId(in);
+                    record.dirtyPages.put(pid, in.readLong());
+                }
+                break;
+            default:
+                break;
+        }
+        in.readLong();
+        return record;
+    }
+
+    /** @return the bytes of the page as it is on disk */
+    private static byte[] readPageBytes(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile && pid.pageNumber() >= ((HeapFile) file).numPages()) {
+            return HeapPage.createEmptyPageData();
         }
-        return newPage;
+        return file.readPage(pid).getPageData();
+    }
 
+    /** Write the pages to disk, and drop them from the buffer pool. */
+    private void writePages(Map<PageId, byte[]> pages) throws IOException {
+        for (Map.Entry<PageId, byte[]> page : pages.entrySet()) {
+            PageId pid = page.getKey();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(new HeapPage(pid, page.getValue()));
+            Database.getBufferPool().discardPage(pid);
+            loggedImages.remove(pid);
+        }
+    }
+
+    /**
+     * Reads the log sequentially from a file position on, through a buffer of
+     * its own, without moving the file pointer, so that a rollback can read
+     * the log in the middle of recovery reading it.
+     */
+    private static class LogInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long bufferPosition; // file position of the start of the buffer
+
+        LogInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.bufferPosition = position;
+            buffer.limit(0);
+        }
+
+        /** @return the file position of the next byte read */
+        long position() {
+            return bufferPosition + buffer.position();
+        }
+
+        private boolean fill() throws IOException {
+            bufferPosition += buffer.limit();
+            buffer.clear();
+            int numberOfBytesRead = channel.read(buffer, bufferPosition);
+            buffer.flip();
+            return numberOfBytesRead > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int numberOfBytes = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, numberOfBytes);
+            return numberOfBytes;
+        }
     }
 
     /**
@@ -302,56 +899,74 @@ public class LogFile {
      */
     public synchronized void logXactionBegin(TransactionId tid) throws IOException {
         Debug.log("BEGIN");
-        if (tidToFirstLogRecord.get(new Long(tid.getId())) != null) {
+        if (tidToFirstLogRecord.get(Long.valueOf(tid.getId())) != null) {
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(new Long(tid.getId()), new Long(currentOffset));
-        currentOffset = raf.getFilePointer();
+        long lsn = currentLsn();
+        appendInt(BEGIN_RECORD);
+        appendLong(tid.getId());
+        appendLong(lsn);
+        tidToFirstLogRecord.put(Long.valueOf(tid.getId()), Long.valueOf(lsn));
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN END LSN = " + currentLsn());
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Checkpoint the log and write a checkpoint record. The checkpoint is
+     * fuzzy: it writes no pages, but records the dirty page table of the
+     * buffer pool, from which on recovery redoes the log.
+     */
     public void logCheckpoint() throws IOException {
         // make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                // Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                // pages record their first change since they were written
+                // under this lock, so that no page logged before the
+                // checkpoint is missing from it
+                Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); // no tid , but leave space for convenience
+                long checkpointLsn = currentLsn();
+                appendInt(CHECKPOINT_RECORD);
+                appendLong(-1); // no tid , but leave space for convenience
 
                 // write list of outstanding transactions
-                raf.writeInt(keys.size());
+                appendInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key.longValue());
-                    // Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " +
+                    appendLong(key.longValue());
+                    // Debug.log("WRITING CHECKPOINT TRANSACTION LSN: " +
                     // tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key).longValue());
+                    appendLong(tidToFirstLogRecord.get(key).longValue());
+                }
+                appendInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> dirtyPage : dirtyPages.entrySet()) {
+                    writePageId(dirtyPage.getKey());
+                    appendLong(dirtyPage.getValue());
                 }
+                appendLong(checkpointLsn);
 
-                // once the CP is written, make sure the CP location at the
+                // once the CP is on disk, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                writeBuffer();
+                force();
                 raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                // Debug.log("CP OFFSET = " + currentOffset);
+                raf.writeLong(checkpointLsn);
+                force();
+            }
+        }
+
+        // the free space maps are only hints, stored with checkpoints rather
+        // than with every page written
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while (tableIds.hasNext()) {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableIds.next());
+            if (dbFile instanceof HeapFile) {
+                ((HeapFile) dbFile).getFreeSpaceMap().store();
             }
         }
 
@@ -359,147 +974,151 @@ public class LogFile {
     }
 
     /**
-     * Truncate any unneeded portion of the log to reduce its space consumption
+     * Truncate any unneeded portion of the log to reduce its space consumption.
+     * Records keep their LSNs, so the rest of the log is copied as it is. The
+     * log is kept from the first record of the transactions active at the last
+     * checkpoint, and from the first change the pages dirty then may lack.
      */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        writeBuffer();
         raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
+        long cpLsn = raf.readLong();
+        if (cpLsn == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        long minLogRecord = cpLsn;
+        LogInputStream log = new LogInputStream(raf.getChannel(), position(cpLsn));
+        LogRecord checkpoint = readRecord(log, new DataInputStream(log));
+        if (checkpoint.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        for (long firstLogRecord : checkpoint.transactions.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recoveryLsn : checkpoint.dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recoveryLsn);
+        }
+        // live transactions may still be rolled back
+        for (long firstChange : tidToFirstChange.values()) {
+            minLogRecord = Math.min(minLogRecord, firstChange);
+        }
+        if (minLogRecord <= startLsn) {
+            return;
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        // have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(new Long(record_tid), new Long(newStart));
-                        break;
-                }
-
-                // all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        logNew.setLength(0);
+        logNew.writeLong(cpLsn);
+        logNew.writeLong(minLogRecord);
+        FileChannel from = raf.getChannel();
+        long position = position(minLogRecord);
+        long end = raf.length();
+        while (position < end) {
+            position += from.transferTo(position, end - position, logNew.getChannel());
         }
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord
-                + " NEW LENGTH: " + (raf.length() - minLogRecord));
+                + " NEW LENGTH: " + logNew.length());
 
+        // commits already forced to the old log must stay durable
+        logNew.getChannel().force(true);
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
         raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        startLsn = minLogRecord;
         // print();
     }
 
-    private void rollback(long tid) throws NoSuchElementException, IOException {
-        Long firstLogRecord = tidToFirstLogRecord.get(tid);
-        if (firstLogRecord == null) {
+    /**
+     * Undo the changes of the transactions from the last to the first, each
+     * with a CLR, in one backward pass over the changes of all of them.
+     * Changes compensated by CLRs already, by a rollback that a crash
+     * interrupted, are skipped. The pages start out from the buffer pool if
+     * they are there, as it may hold committed changes that are not on disk
+     * yet, and are written to disk and dropped from the pool once the CLRs
+     * are durable.
+     */
+    private void rollback(Set<Long> tids) throws NoSuchElementException, IOException {
+        long firstLogRecord = Long.MAX_VALUE;
+        for (Long tid : tids) {
+            Long first = tidToFirstLogRecord.get(tid);
+            if (first == null) {
+                first = tidToFirstChange.get(tid);
+            }
+            if (first != null) {
+                firstLogRecord = Math.min(firstLogRecord, first);
+            }
+        }
+        if (firstLogRecord == Long.MAX_VALUE) {
             return;
         }
-        Set<PageId> resetPageIds = new HashSet<PageId>();
-        long previousPointer = raf.getFilePointer();
-        raf.seek(firstLogRecord);
-        long endPointer = currentOffset == -1?raf.length():currentOffset;
-        while (raf.getFilePointer() < endPointer) {
-            int recordType = raf.readInt();
-            long recordTransactionId = raf.readLong();
-            switch (recordType) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    readPageData(raf);
-                    if (tid == recordTransactionId) {
-                        if (!resetPageIds.contains(before.getId())) {
-                            resetPageIds.add(before.getId());
-                            Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                            Database.getBufferPool().discardPage(before.getId());
-                        }
-                    }
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numActiveTransactions = raf.readInt();
-                    for (int i = 0; i < numActiveTransactions; ++i) {
-                        raf.readLong();
-                        raf.readLong();
-                    }
-                    break;
-                default:
-                    break;
+        writeBuffer();
+        List<LogRecord> changes = new ArrayList<LogRecord>();
+        // the changes of each transaction from this LSN on are compensated
+        // already
+        Map<Long, Long> compensatedLsns = new HashMap<Long, Long>();
+        LogInputStream log = new LogInputStream(raf.getChannel(), position(firstLogRecord));
+        DataInputStream in = new DataInputStream(log);
+        long endPointer = raf.length();
+        while (log.position() < endPointer) {
+            LogRecord record = readRecord(log, in);
+            if (record.change == null || !tids.contains(record.tid)) {
+                continue;
+            }
+            if (record.type == CLR_RECORD) {
+                Long compensatedLsn = compensatedLsns.get(record.tid);
+                if (compensatedLsn == null || record.compensatedLsn < compensatedLsn) {
+                    compensatedLsns.put(record.tid, record.compensatedLsn);
+                }
+            } else {
+                changes.add(record);
+            }
+        }
+
+        Map<PageId, byte[]> resetPages = new HashMap<PageId, byte[]>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            LogRecord record = changes.get(i);
+            Long compensatedLsn = compensatedLsns.get(record.tid);
+            if (compensatedLsn != null && record.lsn >= compensatedLsn) {
+                continue;
             }
-            raf.readLong();
+            PageId pid = record.change.pageId;
+            byte[] data = resetPages.get(pid);
+            if (data == null) {
+                Page resident = Database.getBufferPool().getResidentPage(pid);
+                data = resident != null ? resident.getPageData() : readPageBytes(pid);
+                resetPages.put(pid, data);
+            }
+            byte[] before = data.clone();
+            record.change.undo(data);
+            long lsn = currentLsn();
+            appendInt(CLR_RECORD);
+            appendLong(record.tid);
+            appendLong(record.lsn);
+            writePageId(pid);
+            writeDelta(before, data, false);
+            appendLong(lsn);
+            HeapPage.setPageLsn(data, lsn);
         }
-        raf.seek(previousPointer);
+        writeBuffer();
+        force();
+        writePages(resetPages);
     }
 
     /**
      * Rollback the specified transaction, setting the state of any of pages it
      * updated to their pre-updated state. To preserve transaction semantics, this
      * should not be called on transactions that have already committed (though
-     * this may not be enforced by this method.)
+     * this may not be enforced by this method.) A transaction that logged no
+     * BEGIN record is rolled back from its first change.
      *
      * @param tid The transaction to rollback
      */
@@ -507,7 +1126,7 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
-                rollback(tid.getId());
+                rollback(Collections.singleton(tid.getId()));
             }
         }
     }
@@ -530,57 +1149,102 @@ public class LogFile {
      * Recover the database system by ensuring that the updates of committed
      * transactions are installed and that the updates of uncommitted transactions
      * are not installed.
+     * <p>
+     * The analysis pass reads the log from the last checkpoint on, for the
+     * transactions that did not finish and the pages that may lack changes,
+     * with the first such change of each. The redo pass repeats history from
+     * the first of those changes on, applying every change, CLRs included, to
+     * the pages whose page LSN shows they lack it. The undo pass then rolls
+     * back the unfinished transactions and logs their aborts.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                raf.seek(0);
-                Set<Long> activeTransactionIds = new HashSet<Long>();
-                long checkPointOffset = raf.readLong();
-                if (checkPointOffset >= 0) {
-                    raf.seek(checkPointOffset);
-                    raf.readInt();
-                    raf.readLong();
-                    int numActiveTransactions = raf.readInt();
-                    for (int i = 0; i < numActiveTransactions; ++i) {
-                        long activeTransactionId = raf.readLong();
-                        activeTransactionIds.add(activeTransactionId);
-                        tidToFirstLogRecord.put(activeTransactionId, raf.readLong());
-                    }
-                    raf.readLong();
+                if (raf.length() < HEADER_SIZE) {
+                    return;
                 }
-                while (raf.getFilePointer() < raf.length()) {
-                    long offset = raf.getFilePointer();
-                    int recordType = raf.readInt();
-                    long recordTransactionId = raf.readLong();
-                    switch (recordType) {
+                raf.seek(0);
+                long checkPointLsn = raf.readLong();
+                startLsn = raf.readLong();
+                long end = raf.length();
+
+                // analysis
+                Map<Long, Long> activeTransactions = new HashMap<Long, Long>();
+                Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+                LogInputStream log = new LogInputStream(raf.getChannel(),
+                        checkPointLsn >= 0 ? position(checkPointLsn) : HEADER_SIZE);
+                DataInputStream in = new DataInputStream(log);
+                while (log.position() < end) {
+                    LogRecord record = readRecord(log, in);
+                    switch (record.type) {
                         case ABORT_RECORD:
-                            rollback(recordTransactionId);
-                            activeTransactionIds.remove(recordTransactionId);
-                            break;
                         case COMMIT_RECORD:
-                            activeTransactionIds.remove(recordTransactionId);
+                            activeTransactions.remove(record.tid);
                             break;
                         case BEGIN_RECORD:
-                            activeTransactionIds.add(recordTransactionId);
-                            tidToFirstLogRecord.put(recordTransactionId, offset);
+                            activeTransactions.put(record.tid, record.lsn);
                             break;
-                        case UPDATE_RECORD:
-                            readPageData(raf);
-                            Page after = readPageData(raf);
-                            Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
-                            Database.getBufferPool().discardPage(after.getId());
+                        case CHECKPOINT_RECORD:
+                            activeTransactions.putAll(record.transactions);
+                            for (Map.Entry<PageId, Long> dirtyPage : record.dirtyPages.entrySet()) {
+                                if (!dirtyPages.containsKey(dirtyPage.getKey())) {
+                                    dirtyPages.put(dirtyPage.getKey(), dirtyPage.getValue());
+                                }
+                            }
                             break;
                         default:
+                            if (record.change != null && !dirtyPages.containsKey(record.change.pageId)) {
+                                dirtyPages.put(record.change.pageId, record.lsn);
+                            }
                             break;
                     }
-                    raf.readLong();
                 }
-                currentOffset = raf.getFilePointer();
-                for (long activeTransactionId : activeTransactionIds) {
-                    rollback(activeTransactionId);
+
+                // redo, into pages written out before anything else reads them
+                Map<PageId, byte[]> redonePages = new LinkedHashMap<PageId, byte[]>();
+                if (!dirtyPages.isEmpty()) {
+                    long redoLsn = Collections.min(dirtyPages.values());
+                    log = new LogInputStream(raf.getChannel(), position(redoLsn));
+                    in = new DataInputStream(log);
+                    while (log.position() < end) {
+                        LogRecord record = readRecord(log, in);
+                        if (record.change == null) {
+                            continue;
+                        }
+                        PageId pid = record.change.pageId;
+                        Long recoveryLsn = dirtyPages.get(pid);
+                        if (recoveryLsn == null || record.lsn < recoveryLsn) {
+                            continue;
+                        }
+                        byte[] data = redonePages.get(pid);
+                        if (data == null) {
+                            data = readPageBytes(pid);
+                            redonePages.put(pid, data);
+                        }
+                        if (HeapPage.getPageLsn(data) >= record.lsn) {
+                            continue;
+                        }
+                        record.change.redo(data);
+                        HeapPage.setPageLsn(data, record.lsn);
+                    }
                 }
+                writePages(redonePages);
+                bufferLsn = lsnAt(end);
+                buffer.clear();
+
+                // undo
+                tidToFirstLogRecord.putAll(activeTransactions);
+                rollback(activeTransactions.keySet());
+                for (long activeTransactionId : activeTransactions.keySet()) {
+                    long lsn = currentLsn();
+                    appendInt(ABORT_RECORD);
+                    appendLong(activeTransactionId);
+                    appendLong(lsn);
+                    tidToFirstLogRecord.remove(activeTransactionId);
+                }
+                writeBuffer();
+                force();
             }
         }
     }
@@ -590,8 +1254,26 @@ public class LogFile {
         // some code goes here
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Force the log file to disk. Does not take the log's lock, so that
+     * records can be appended while a force is under way; records still in
+     * the log buffer are not written, see {@link #flushUpTo}.
+     */
+    public void force() throws IOException {
+        RandomAccessFile file = raf;
+        try {
+            file.getChannel().force(true);
+        } catch (ClosedChannelException e) {
+            RandomAccessFile current;
+            synchronized (this) {
+                current = raf;
+            }
+            if (current == file) {
+                throw e;
+            }
+            // the log was truncated into a new file meanwhile
+            force();
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package minibase;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Evicts the least recently used page.
+ */
+public class LruEvictionPolicy extends AbstractEvictionPolicy {
+
+    // iteration order is least recently used first
+    private final LinkedHashSet<PageId> pageIds;
+
+    public LruEvictionPolicy() {
+        this.pageIds = new LinkedHashSet<PageId>();
+    }
+
+    @Override
+    protected synchronized void onHit(PageId pageId) {
+        if (pageIds.remove(pageId)) {
+            pageIds.add(pageId);
+        }
+    }
+
+    @Override
+    protected synchronized void onAdd(PageId pageId) {
+        pageIds.remove(pageId);
+        pageIds.add(pageId);
+    }
+
+//    @Override
+    public synchronized void pageRemoved(PageId pageId) {
+        pageIds.remove(pageId);
+    }
+
+//    @Override
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        Iterator<PageId> pageIdIterator = pageIds.iterator();
+        while (pageIdIterator.hasNext()) {
+            PageId pageId = pageIdIterator.next();
+            if (filter.canEvict(pageId)) {
+                return pageId;
+            }
+        }
+        return null;
+    }
+}
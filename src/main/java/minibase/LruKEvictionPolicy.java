@@ -0,0 +1,121 @@
+package minibase;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU-K (O'Neil, O'Neil and Weikum). Evicts the page whose K-th most recent
+ * reference lies furthest in the past. Pages that have been referenced fewer
+ * than K times have an infinite backward K-distance and go first, oldest last
+ * reference first, so a page read once by a scan never pushes out a page that
+ * is looked up repeatedly.
+ * <p>
+ * Reference history is retained for a bounded number of pages after they leave
+ * the pool, so a page that comes back quickly is recognised as hot.
+ */
+public class LruKEvictionPolicy extends AbstractEvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static final long NEVER = -1;
+
+    private final int k;
+    // reference times of the pages in the pool
+    private final Map<PageId, long[]> residentHistory;
+    // reference times of pages that left the pool, oldest departure first
+    private final Map<PageId, long[]> retiredHistory;
+    private long clock;
+
+    /**
+     * @param k number of references to remember per page
+     * @param retainedHistory how many pages no longer in the pool keep their
+     *          reference history
+     */
+    public LruKEvictionPolicy(int k, final int retainedHistory) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1.");
+        }
+        this.k = k;
+        this.residentHistory = new HashMap<PageId, long[]>();
+        this.retiredHistory = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > retainedHistory;
+            }
+        };
+        this.clock = 0;
+    }
+
+    /**
+     * LRU-2 that remembers as many evicted pages as the pool holds.
+     *
+     * @param numPages number of pages in the buffer pool
+     */
+    public LruKEvictionPolicy(int numPages) {
+        this(DEFAULT_K, numPages);
+    }
+
+    private void reference(long[] times) {
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    @Override
+    protected synchronized void onHit(PageId pageId) {
+        long[] times = residentHistory.get(pageId);
+        if (times != null) {
+            reference(times);
+        }
+    }
+
+    @Override
+    protected synchronized void onAdd(PageId pageId) {
+        long[] times = retiredHistory.remove(pageId);
+        if (times == null) {
+            times = new long[k];
+            for (int i = 0; i < k; i++) {
+                times[i] = NEVER;
+            }
+        }
+        residentHistory.put(pageId, times);
+        reference(times);
+    }
+
+//    @Override
+    public synchronized void pageRemoved(PageId pageId) {
+        long[] times = residentHistory.remove(pageId);
+        if (times != null) {
+            retiredHistory.put(pageId, times);
+        }
+    }
+
+    /** @return the number of pages whose reference history is kept */
+    synchronized int getHistorySize() {
+        return residentHistory.size() + retiredHistory.size();
+    }
+
+//    @Override
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        PageId victim = null;
+        long victimKthReference = Long.MAX_VALUE;
+        long victimLastReference = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> entry : residentHistory.entrySet()) {
+            PageId pageId = entry.getKey();
+            long[] times = entry.getValue();
+            long kthReference = times[k - 1];
+            long lastReference = times[0];
+            if (kthReference < victimKthReference
+                    || (kthReference == victimKthReference && lastReference < victimLastReference)) {
+                if (filter.canEvict(pageId)) {
+                    victim = pageId;
+                    victimKthReference = kthReference;
+                    victimLastReference = lastReference;
+                }
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,143 @@
+package minibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * MappedHeapFile is a read-only DbFile over a heap file in the format written
+ * by {@link HeapFileEncoder}, for tables that are bulk loaded and then only
+ * queried. The file is memory-mapped and pages are parsed straight out of the
+ * mapping, so the operating system's page cache does the caching and reads do
+ * not copy the page into a byte array first.
+ * <p>
+ * A single MappedByteBuffer cannot exceed 2 GB, so the file is mapped in
+ * segments of {@link #SEGMENT_SIZE} bytes. Segments are a multiple of the page
+ * size, so no page straddles two of them.
+ * <p>
+ * The table id is derived from the file name exactly like {@link HeapFile}
+ * does, so a table can be switched between the two without changing its id.
+ * Inserts and deletes fail with a DbException.
+ */
+public class MappedHeapFile implements DbFile {
+
+    /** Size of each mapped segment, 1 GB. */
+    public static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File backingFile;
+    private final TupleDesc tupleDesc;
+    private final MappedByteBuffer[] segments;
+    private final int numberOfPages;
+
+    /**
+     * Maps the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        this.backingFile = f;
+        this.tupleDesc = td;
+        try {
+            RandomAccessFile accessFile = new RandomAccessFile(f, "r");
+            try {
+                FileChannel channel = accessFile.getChannel();
+                long length = channel.size();
+                this.numberOfPages = (int) (length / BufferPool.getPageSize());
+                long mappedLength = (long) numberOfPages * BufferPool.getPageSize();
+                int numberOfSegments = (int) ((mappedLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+                this.segments = new MappedByteBuffer[numberOfSegments];
+                for (int i = 0; i < numberOfSegments; i++) {
+                    long position = i * SEGMENT_SIZE;
+                    long size = Math.min(SEGMENT_SIZE, mappedLength - position);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                }
+            } finally {
+                // the mappings stay valid after the channel is closed
+                accessFile.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the File backing this MappedHeapFile on disk.
+     */
+    public File getFile() {
+        return backingFile;
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public int getId() {
+        return backingFile.getAbsoluteFile().hashCode();
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    /**
+     * Returns the number of pages in this MappedHeapFile.
+     */
+    public int numPages() {
+        return numberOfPages;
+    }
+
+    /**
+     * @return a read-only view of the bytes of the given page, backed by the
+     *         mapping.
+     */
+    ByteBuffer pageBuffer(int pageNumber) {
+        if (pageNumber < 0 || pageNumber >= numberOfPages) {
+            throw new IllegalArgumentException("Page " + pageNumber + " does not exist in this file.");
+        }
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pageSize * pageNumber;
+        ByteBuffer page = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+        int positionInSegment = (int) (offset % SEGMENT_SIZE);
+        page.position(positionInSegment);
+        page.limit(positionInSegment + pageSize);
+        return page.slice();
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public Page readPage(PageId pid) {
+        try {
+            return new HeapPage(pid, pageBuffer(pid.pageNumber()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public void writePage(Page page) throws IOException {
+        throw new IOException("MappedHeapFile is read-only.");
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("Cannot insert into a read-only MappedHeapFile.");
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public Page deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("Cannot delete from a read-only MappedHeapFile.");
+    }
+
+    // see DbFile.java for javadocs
+//    @Override
+    public DbFileIterator iterator(TransactionId transactionId) {
+        return HeapFileIterator.create(getId(), numberOfPages, transactionId);
+    }
+}
@@ -7,7 +7,7 @@ package minibase;
  * Pages may be "dirty", indicating that they have been modified since they were
  * last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  * Page(PageId id, byte[] data)
  */
 public interface Page {
@@ -34,6 +34,35 @@ public interface Page {
      */
     public void markDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * @return the page LSN: the LSN of the log record of the last change to
+     *         this page, which is written out with it
+     */
+    public long getLsn();
+
+    /**
+     * @return whether this page was changed without logging it since its last
+     *         log record, so that it has to be logged as a whole before it is
+     *         written
+     */
+    public boolean hasUnloggedChanges();
+
+    /**
+     * Record that the page as it is was logged by the record with the given
+     * LSN.
+     */
+    public void setLsn(long lsn);
+
+    /**
+     * @return the LSN of the first log record of a change to this page since
+     *         it was last written, from which on recovery has to redo the
+     *         changes of the page, or -1 if it has none
+     */
+    public long getRecoveryLsn();
+
+    /** Record that the page was written out as it is. */
+    public void markWritten();
+
     /**
      * Generates a byte array representing the contents of this page. Used to
      * serialize this page to disk.
@@ -55,7 +84,8 @@ public interface Page {
 
     /*
      * a transaction that wrote this page just committed it. copy current content
-     * to the before image.
+     * to the before image. The copy may be deferred until the page is next
+     * modified, as long as getBeforeImage returns the content as of this call.
      */
     public void setBeforeImage();
 }
\ No newline at end of file
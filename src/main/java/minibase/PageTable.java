@@ -0,0 +1,388 @@
+package minibase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageTable maps the ids of the pages resident in the BufferPool to their
+ * frames. The table is split into stripes by PageId hash, each guarded by its
+ * own monitor, so lookups of different pages never contend on a single lock
+ * and a lookup only holds its stripe long enough to find and pin the frame.
+ * <p>
+ * A frame is created before its page is read from disk. The thread that
+ * created it does the read, and every other thread asking for the same page
+ * in the meantime finds the frame and waits for that single read instead of
+ * issuing its own.
+ * <p>
+ * A frame is pinned for as long as a thread is reading its page in or handing
+ * it out of {@link BufferPool#getPage}; pinned frames are never removed by
+ * {@link #removeIfUnpinned}.
+ * <p>
+ * When the table is given a {@link FrameArena}, resident pages live in arena
+ * frames as raw bytes, and a frame only holds a decoded Page object while the
+ * page is in use: the page is decoded from the frame on access, and decoded
+ * pages that are clean, unpinned and not write-locked are dropped again by
+ * {@link #trimDecoded} once there are too many of them. A dirty page keeps its
+ * decoded object until it is written back to its frame.
+ */
+class PageTable {
+
+    static final int DEFAULT_STRIPES = 64;
+
+    /** A slot of the buffer pool holding one page, or waiting for it to load. */
+    static class Frame {
+        private final PageId pageId;
+        private final AtomicInteger pinCount;
+        private final CountDownLatch loaded;
+        private volatile Page page;
+        private volatile boolean failed;
+        private int arenaSlot;
+        private ByteBuffer data;
+
+        private Frame(PageId pageId) {
+            this.pageId = pageId;
+            this.pinCount = new AtomicInteger(0);
+            this.loaded = new CountDownLatch(1);
+            this.arenaSlot = -1;
+        }
+
+        PageId getPageId() {
+            return pageId;
+        }
+
+        /**
+         * @return the page, or null if it is still being read or, in an arena,
+         *         is not decoded at the moment.
+         */
+        Page getPage() {
+            return page;
+        }
+
+        /** @return whether the page has been read in successfully. */
+        boolean isLoaded() {
+            return loaded.getCount() == 0 && !failed;
+        }
+
+        int getPinCount() {
+            return pinCount.get();
+        }
+
+        void unpin() {
+            pinCount.decrementAndGet();
+        }
+
+        /**
+         * Wait for the thread that created this frame to read the page in.
+         *
+         * @return false if reading the page failed
+         */
+        boolean awaitLoaded() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    loaded.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return !failed;
+        }
+    }
+
+    /** Result of {@link #pin}: the pinned frame and whether the caller must load it. */
+    static class Pin {
+        final Frame frame;
+        final boolean mustLoad;
+
+        private Pin(Frame frame, boolean mustLoad) {
+            this.frame = frame;
+            this.mustLoad = mustLoad;
+        }
+    }
+
+    private final List<Map<PageId, Frame>> stripes;
+    private final FrameArena arena;
+    private final Queue<Frame> decodedFrames;
+
+    PageTable() {
+        this(DEFAULT_STRIPES, null);
+    }
+
+    /**
+     * @param arena holds the bytes of the resident pages, or null to keep pages
+     *          as decoded objects on the heap
+     */
+    PageTable(int numberOfStripes, FrameArena arena) {
+        this.stripes = new ArrayList<Map<PageId, Frame>>(numberOfStripes);
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes.add(new HashMap<PageId, Frame>());
+        }
+        this.arena = arena;
+        this.decodedFrames = new ConcurrentLinkedQueue<Frame>();
+    }
+
+    FrameArena getArena() {
+        return arena;
+    }
+
+    private Map<PageId, Frame> stripeFor(PageId pageId) {
+        int hash = pageId.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes.get((hash & 0x7fffffff) % stripes.size());
+    }
+
+    /**
+     * Pin the frame of the given page, creating an empty frame if the page is
+     * not resident. If the frame was created, the caller must read the page and
+     * hand it to {@link #loaded} or {@link #loadFailed}.
+     */
+    Pin pin(PageId pageId) {
+        Map<PageId, Frame> stripe = stripeFor(pageId);
+        synchronized (stripe) {
+            Frame frame = stripe.get(pageId);
+            boolean mustLoad = false;
+            if (frame == null) {
+                frame = new Frame(pageId);
+                stripe.put(pageId, frame);
+                mustLoad = true;
+            }
+            frame.pinCount.incrementAndGet();
+            return new Pin(frame, mustLoad);
+        }
+    }
+
+    /** Publish the page read into a frame created by {@link #pin}. */
+    void loaded(Frame frame, Page page) {
+        frame.page = page;
+        frame.loaded.countDown();
+    }
+
+    /**
+     * Publish the page read into the arena frame at slot, for a frame created by
+     * {@link #pin}. The page is decoded on first access.
+     */
+    void loaded(Frame frame, int slot) {
+        frame.arenaSlot = slot;
+        frame.data = arena.frame(slot);
+        frame.loaded.countDown();
+    }
+
+    /**
+     * @return the page of a loaded frame, decoding it from the arena if it is
+     *         not decoded at the moment, or null if the frame has been removed
+     *         from the table in the meantime.
+     */
+    Page page(Frame frame) {
+        Page page = frame.page;
+        if (page != null) {
+            return page;
+        }
+        synchronized (frame) {
+            if (frame.page == null) {
+                if (frame.data == null) {
+                    return null;
+                }
+                // the page reads its fields lazily, so it gets a copy of the
+                // bytes; the frame may be recycled while the page is still
+                // referenced by a scan.
+                byte[] pageData = new byte[frame.data.capacity()];
+                frame.data.duplicate().get(pageData);
+                try {
+                    frame.page = new HeapPage(frame.pageId, pageData);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                decodedFrames.add(frame);
+            }
+            return frame.page;
+        }
+    }
+
+    /**
+     * Drop decoded pages, oldest decoded first, until at most maxDecoded remain.
+     * Pages that are pinned, dirty or vetoed by the filter stay decoded. Does
+     * nothing for a table without an arena.
+     */
+    void trimDecoded(int maxDecoded, EvictionPolicy.EvictionFilter filter) {
+        for (int i = decodedFrames.size(); i > 0 && decodedFrames.size() > maxDecoded; i--) {
+            Frame frame = decodedFrames.poll();
+            if (frame == null) {
+                return;
+            }
+            synchronized (frame) {
+                Page page = frame.page;
+                if (page == null) {
+                    continue;
+                }
+                if (frame.pinCount.get() > 0 || BufferPool.needsWrite(page) || !filter.canEvict(frame.pageId)) {
+                    decodedFrames.add(frame);
+                    continue;
+                }
+                frame.page = null;
+            }
+        }
+    }
+
+    /**
+     * Store the content of page in the arena frame of its page, so that it is
+     * what the page decodes to from now on. Does nothing for a table without an
+     * arena.
+     */
+    void writeBack(Page page) {
+        if (arena == null) {
+            return;
+        }
+        Map<PageId, Frame> stripe = stripeFor(page.getId());
+        Frame frame;
+        synchronized (stripe) {
+            frame = stripe.get(page.getId());
+        }
+        if (frame == null) {
+            return;
+        }
+        synchronized (frame) {
+            if (frame.data != null) {
+                writeData(frame, page);
+            }
+        }
+    }
+
+    private static void writeData(Frame frame, Page page) {
+        ByteBuffer data = frame.data.duplicate();
+        data.clear();
+        data.put(page.getPageData());
+    }
+
+    /** Give the arena frame of a frame that was just removed back to the arena. */
+    private void releaseData(Frame frame) {
+        if (arena == null) {
+            return;
+        }
+        synchronized (frame) {
+            if (frame.data != null) {
+                arena.release(frame.arenaSlot);
+                frame.data = null;
+                frame.arenaSlot = -1;
+            }
+        }
+    }
+
+    /** Drop a frame whose page could not be read, waking up its waiters. */
+    void loadFailed(Frame frame) {
+        Map<PageId, Frame> stripe = stripeFor(frame.pageId);
+        synchronized (stripe) {
+            if (stripe.get(frame.pageId) == frame) {
+                stripe.remove(frame.pageId);
+            }
+        }
+        frame.failed = true;
+        frame.loaded.countDown();
+    }
+
+    /** @return the resident page with the given id, or null. Does not pin. */
+    Page get(PageId pageId) {
+        Map<PageId, Frame> stripe = stripeFor(pageId);
+        synchronized (stripe) {
+            Frame frame = stripe.get(pageId);
+            return frame == null ? null : frame.page;
+        }
+    }
+
+    /**
+     * Replace the resident page with the given id, e.g. with its before-image
+     * on abort. Does nothing if the page is not resident.
+     */
+    void replace(PageId pageId, Page page) {
+        Map<PageId, Frame> stripe = stripeFor(pageId);
+        Frame frame;
+        synchronized (stripe) {
+            frame = stripe.get(pageId);
+            if (frame == null || !frame.isLoaded()) {
+                return;
+            }
+        }
+        if (arena == null) {
+            frame.page = page;
+            return;
+        }
+        synchronized (frame) {
+            if (frame.data != null) {
+                writeData(frame, page);
+                // decoded again from the frame on next access
+                frame.page = null;
+            }
+        }
+    }
+
+    /**
+     * Remove the page with the given id if it is resident and unpinned.
+     *
+     * @return true if the page was removed
+     */
+    boolean removeIfUnpinned(PageId pageId) {
+        Map<PageId, Frame> stripe = stripeFor(pageId);
+        synchronized (stripe) {
+            Frame frame = stripe.get(pageId);
+            if (frame == null || !frame.isLoaded() || frame.pinCount.get() > 0) {
+                return false;
+            }
+            stripe.remove(pageId);
+            releaseData(frame);
+            return true;
+        }
+    }
+
+    /**
+     * Remove the page with the given id if it is resident, pinned or not.
+     *
+     * @return true if the page was removed
+     */
+    boolean remove(PageId pageId) {
+        Map<PageId, Frame> stripe = stripeFor(pageId);
+        synchronized (stripe) {
+            Frame frame = stripe.get(pageId);
+            if (frame == null || !frame.isLoaded()) {
+                return false;
+            }
+            stripe.remove(pageId);
+            releaseData(frame);
+            return true;
+        }
+    }
+
+    /** @return the ids of all resident pages at the time of the call. */
+    List<PageId> pageIds() {
+        List<PageId> pageIds = new ArrayList<PageId>();
+        for (Map<PageId, Frame> stripe : stripes) {
+            synchronized (stripe) {
+                for (Frame frame : stripe.values()) {
+                    if (frame.isLoaded()) {
+                        pageIds.add(frame.pageId);
+                    }
+                }
+            }
+        }
+        return pageIds;
+    }
+
+    /** @return the pin count of the given page, or 0 if it is not resident. */
+    int getPinCount(PageId pageId) {
+        Map<PageId, Frame> stripe = stripeFor(pageId);
+        synchronized (stripe) {
+            Frame frame = stripe.get(pageId);
+            return frame == null ? 0 : frame.pinCount.get();
+        }
+    }
+}
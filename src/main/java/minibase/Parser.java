@@ -10,6 +10,8 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    /** Whether the transactions the parser starts are read-only snapshots, for reporting sessions. */
+    static boolean readOnly = false;
     static HashMap<String, TableStats> statsMap = new HashMap<String,TableStats>();
     private static final int IOCOSTPERPAGE = 1000;
 
@@ -352,8 +354,12 @@ public class Parser {
 
     public static void handleTransactStatement(ZTransactStmt s) throws TransactionAbortedException, DbException, IOException, minibase.ParsingException, Zql.ParseException {
         if (s.getStmtType().equals("COMMIT")) {
-            curtrans.transactionComplete(false);
-            curtrans = null;
+            try {
+                curtrans.commit();
+            } finally {
+                // an optimistic transaction that fails validation is aborted
+                curtrans = null;
+            }
             System.out.println("Transaction committed.");
         } else if (s.getStmtType().equals("ROLLBACK")) {
             curtrans.transactionComplete(true);
@@ -454,9 +460,9 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+        String usage = "Usage: parser catalogFile [-explain] [-readonly] [-f queryFile]";
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -482,6 +488,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-readonly")) {
+                    readOnly = true;
+                    System.out.println("Transactions are read-only snapshots.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -497,7 +506,7 @@ public class Parser {
         }
         if (!interactive) {
             try {
-                curtrans = new Transaction();
+                curtrans = new Transaction(readOnly);
                 curtrans.start();
                 processNextStatement(new FileInputStream(new File(queryFile)));
             } catch (FileNotFoundException e) {
@@ -524,7 +533,7 @@ public class Parser {
 
                     //create a transaction for the query
                     if (curtrans == null) {
-                        curtrans = new Transaction();
+                        curtrans = new Transaction(readOnly);
                         curtrans.start();
                         System.out.println("Started a new transaction tid = " + curtrans.getId().getId());
                     }
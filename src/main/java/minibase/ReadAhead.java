@@ -0,0 +1,167 @@
+package minibase;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead watches the pages the BufferPool is asked for and, once it sees a
+ * table being read in page order, reads the next pages of that table on a
+ * background I/O thread, so that the scan finds them in the pool instead of
+ * blocking on disk.
+ * <p>
+ * Detection is per table. After {@link #MIN_SEQUENTIAL_RUN} consecutive page
+ * numbers the first window of {@link #INITIAL_WINDOW} pages is read ahead.
+ * Each time the scan has consumed half of what was read ahead, the window
+ * doubles, up to {@link #MAX_WINDOW}. Any non-sequential access resets it.
+ * <p>
+ * Read-ahead never evicts pages of the shared pool: a scan with a
+ * {@link ScanRing} reads ahead into its ring (at most half of it, so pages are
+ * not recycled before the scan reaches them), and a scan without one only
+ * reads ahead into free frames. Pools smaller than {@link #MIN_POOL_PAGES} do
+ * not read ahead at all.
+ */
+public class ReadAhead {
+
+    public static final int MIN_SEQUENTIAL_RUN = 2;
+    public static final int INITIAL_WINDOW = 2;
+    public static final int MAX_WINDOW = 16;
+    public static final int MIN_POOL_PAGES = 16;
+
+    private static final int IO_THREADS = 2;
+
+    // shared by all buffer pools, so resetting the pool in tests does not
+    // leave threads behind.
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(IO_THREADS,
+            new ThreadFactory() {
+//                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "minibase-read-ahead");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Sequential access state of one table. */
+    private static class Stream {
+        int lastPageNumber = Integer.MIN_VALUE;
+        int runLength = 0;
+        int window = INITIAL_WINDOW;
+        int readAheadUpTo = -1;
+    }
+
+    private final BufferPool bufferPool;
+    private final ConcurrentMap<Integer, Stream> streams;
+    // windows submitted and not read yet; guarded by this
+    private int pendingWindows;
+
+    public ReadAhead(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.streams = new ConcurrentHashMap<Integer, Stream>();
+    }
+
+    /**
+     * Record that pageId was requested, and schedule background reads if that
+     * continues a sequential run.
+     *
+     * @param scanRing the ring of the requesting scan, or null
+     */
+    public void pageRequested(PageId pageId, ScanRing scanRing) {
+        DbFile dbFile;
+        try {
+            dbFile = Database.getCatalog().getDatabaseFile(pageId.getTableId());
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (!(dbFile instanceof HeapFile)) {
+            return;
+        }
+        int numPages = ((HeapFile) dbFile).numPages();
+        int maxWindow = scanRing == null ? MAX_WINDOW : Math.min(MAX_WINDOW, scanRing.size() / 2);
+        if (maxWindow < 1) {
+            return;
+        }
+
+        int pageNumber = pageId.pageNumber();
+        int from;
+        int to;
+        Integer tableId = pageId.getTableId();
+        streams.putIfAbsent(tableId, new Stream());
+        Stream stream = streams.get(tableId);
+        synchronized (stream) {
+            if (pageNumber == stream.lastPageNumber) {
+                return;
+            }
+            if (stream.lastPageNumber != Integer.MIN_VALUE && pageNumber == stream.lastPageNumber + 1) {
+                stream.runLength++;
+            } else {
+                stream.runLength = 0;
+                stream.window = INITIAL_WINDOW;
+                stream.readAheadUpTo = pageNumber;
+            }
+            stream.lastPageNumber = pageNumber;
+            if (stream.runLength < MIN_SEQUENTIAL_RUN
+                    || pageNumber + stream.window / 2 < stream.readAheadUpTo) {
+                return;
+            }
+            if (stream.readAheadUpTo > pageNumber) {
+                stream.window = Math.min(stream.window * 2, maxWindow);
+            }
+            stream.window = Math.min(stream.window, maxWindow);
+            from = Math.max(stream.readAheadUpTo + 1, pageNumber + 1);
+            to = Math.min(pageNumber + stream.window, numPages - 1);
+            if (from > to) {
+                return;
+            }
+            stream.readAheadUpTo = to;
+        }
+        submit(tableId, from, to, scanRing);
+    }
+
+    private void submit(final int tableId, final int from, final int to, final ScanRing scanRing) {
+        synchronized (this) {
+            pendingWindows++;
+        }
+        IO_EXECUTOR.execute(new Runnable() {
+//            @Override
+            public void run() {
+                try {
+                    bufferPool.prefetchPages(tableId, from, to, scanRing);
+                } catch (Exception e) {
+                    // read-ahead is only a hint; the scan will read the pages
+                    // itself if they are not there.
+                    Debug.log("read-ahead of pages %d to %d failed: %s", from, to, e);
+                } finally {
+                    windowRead();
+                }
+            }
+        });
+    }
+
+    private synchronized void windowRead() {
+        pendingWindows--;
+        if (pendingWindows == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the pages of the windows scheduled so far have been read, or
+     * the timeout passes.
+     *
+     * @return false if the timeout passed first
+     */
+    public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pendingWindows > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+package minibase;
+
+/**
+ * ScanRing is a small private ring of buffer pool frames used by a large
+ * sequential scan, in the spirit of PostgreSQL's buffer access strategies.
+ * <p>
+ * Pages the scan has to read from disk are remembered in the ring; once the
+ * ring is full, the next page the scan reads replaces the oldest page the scan
+ * itself brought in, instead of asking the eviction policy for a victim. A scan
+ * over a table much larger than the pool therefore occupies only as many frames
+ * as the ring has, and the rest of the pool keeps its working set.
+ *
+ * @see BufferPool#createScanRing
+ */
+public class ScanRing {
+
+    private final PageId[] frames;
+    private int next;
+
+    /**
+     * @param size number of frames the scan may recycle
+     */
+    public ScanRing(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("A ScanRing needs at least one frame.");
+        }
+        this.frames = new PageId[size];
+        this.next = 0;
+    }
+
+    public int size() {
+        return frames.length;
+    }
+
+    /**
+     * Hand the next frame of the ring to pageId, which is about to be read.
+     *
+     * @return the page that occupied the frame and should be dropped from the
+     *         pool, or null if the ring was not full yet.
+     */
+    synchronized PageId replaceNext(PageId pageId) {
+        PageId victim = frames[next];
+        frames[next] = pageId;
+        next = (next + 1) % frames.length;
+        return victim;
+    }
+}
@@ -91,6 +91,20 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Let the scan skip tuples that do not satisfy predicate, if the underlying
+     * file can evaluate it before building tuples.
+     *
+     * @return whether the predicate was pushed down
+     */
+    public boolean pushDown(Predicate predicate) {
+        if (iterator instanceof HeapFileIterator) {
+            ((HeapFileIterator) iterator).addPredicate(predicate);
+            return true;
+        }
+        return false;
+    }
+
 //    @Override
     public void open() throws DbException, TransactionAbortedException {
         this.iterator.open();
@@ -5,19 +5,75 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * A read-only transaction reads a snapshot without locking, see
+ * {@link BufferPool#beginSnapshot}, and writes nothing to the log. A
+ * transaction under snapshot isolation reads a snapshot as well, but may
+ * write; an optimistic one runs without locks and is validated when it
+ * commits.
  */
 
 public class Transaction {
     TransactionId tid;
     boolean started = false;
+    final boolean readOnly;
+    final ConcurrencyControl concurrencyControl;
+
+    /** How a transaction that may write is kept apart from the others. */
+    public enum ConcurrencyControl {
+        /** Strict two-phase locking of the pages read and written. */
+        LOCKING,
+        /** Reads a snapshot, write-locks the pages written, first committer wins. */
+        SNAPSHOT_ISOLATION,
+        /** Runs without locks and is validated at commit. */
+        OPTIMISTIC
+    }
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads, from a snapshot
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly, readOnly ? ConcurrencyControl.SNAPSHOT_ISOLATION : ConcurrencyControl.LOCKING);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads
+     * @param snapshotIsolation whether the transaction reads a snapshot rather
+     *          than locking what it reads; implied by readOnly
+     * @deprecated use {@link #Transaction(boolean)} for read-only transactions
+     *             and {@link #Transaction(ConcurrencyControl)} with
+     *             {@link ConcurrencyControl#SNAPSHOT_ISOLATION} otherwise
+     */
+    @Deprecated
+    public Transaction(boolean readOnly, boolean snapshotIsolation) {
+        this(readOnly, readOnly || snapshotIsolation ? ConcurrencyControl.SNAPSHOT_ISOLATION
+                : ConcurrencyControl.LOCKING);
+    }
+
+    public Transaction(ConcurrencyControl concurrencyControl) {
+        this(false, concurrencyControl);
+    }
+
+    private Transaction(boolean readOnly, ConcurrencyControl concurrencyControl) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+        this.concurrencyControl = concurrencyControl;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (concurrencyControl == ConcurrencyControl.SNAPSHOT_ISOLATION) {
+            Database.getBufferPool().beginSnapshot(tid, readOnly);
+        } else if (concurrencyControl == ConcurrencyControl.OPTIMISTIC) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
+        if (readOnly) {
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,21 +85,52 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Bound how long the transaction waits for a lock before it is aborted,
+     * whatever the timeout of the other transactions.
+     *
+     * @param lockTimeoutMillis the timeout in ms, or LockManager.NO_TIMEOUT
+     */
+    public void setLockTimeout(long lockTimeoutMillis) {
+        Database.getBufferPool().getLockManager().setLockTimeout(tid, lockTimeoutMillis);
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if an optimistic transaction fails
+     *           validation; it is aborted then
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && concurrencyControl == ConcurrencyControl.OPTIMISTIC) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the changes of its pages that were not logged yet; the
+                //pages are written out later
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
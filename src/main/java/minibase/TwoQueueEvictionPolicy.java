@@ -0,0 +1,96 @@
+package minibase;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q (Johnson and Shasha). New pages enter a FIFO queue, A1in. When they
+ * are evicted from A1in only their ids are remembered in a ghost queue,
+ * A1out. A page that is requested again while its id is still in A1out is hot
+ * and goes to Am, which is managed as LRU. Pages that are touched once, like
+ * the pages of a sequential scan, therefore cycle through A1in without
+ * disturbing Am.
+ */
+public class TwoQueueEvictionPolicy extends AbstractEvictionPolicy {
+
+    private final int maxA1inSize;
+    private final int maxA1outSize;
+
+    // all three queues iterate oldest first
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * @param numPages number of pages in the buffer pool; A1in is sized to a
+     *          quarter and A1out to half of it, as recommended in the paper
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    public TwoQueueEvictionPolicy(int maxA1inSize, int maxA1outSize) {
+        this.maxA1inSize = maxA1inSize;
+        this.maxA1outSize = maxA1outSize;
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashSet<PageId>();
+    }
+
+    @Override
+    protected synchronized void onHit(PageId pageId) {
+        // hits in A1in are deliberately ignored: they are most likely
+        // correlated references from the same scan or statement.
+        if (am.remove(pageId)) {
+            am.add(pageId);
+        }
+    }
+
+    @Override
+    protected synchronized void onAdd(PageId pageId) {
+        if (a1out.remove(pageId)) {
+            am.add(pageId);
+        } else if (!am.contains(pageId)) {
+            a1in.remove(pageId);
+            a1in.add(pageId);
+        }
+    }
+
+//    @Override
+    public synchronized void pageRemoved(PageId pageId) {
+        if (a1in.remove(pageId)) {
+            a1out.add(pageId);
+            if (a1out.size() > maxA1outSize) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            am.remove(pageId);
+        }
+    }
+
+//    @Override
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        PageId victim = null;
+        if (a1in.size() > maxA1inSize || am.isEmpty()) {
+            victim = firstEvictable(a1in, filter);
+        }
+        if (victim == null) {
+            victim = firstEvictable(am, filter);
+        }
+        if (victim == null) {
+            victim = firstEvictable(a1in, filter);
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, EvictionFilter filter) {
+        for (PageId pageId : queue) {
+            if (filter.canEvict(pageId)) {
+                return pageId;
+            }
+        }
+        return null;
+    }
+}
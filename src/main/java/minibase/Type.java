@@ -2,6 +2,7 @@ package minibase;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /**
@@ -24,6 +25,11 @@ public enum Type {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buffer, int offset) {
+            return new IntField(buffer.getInt(offset));
+        }
+
     },
     STRING_TYPE() {
         @Override
@@ -43,6 +49,16 @@ public enum Type {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buffer, int offset) {
+            int strLen = buffer.getInt(offset);
+            byte bs[] = new byte[strLen];
+            for (int i = 0; i < strLen; i++) {
+                bs[i] = buffer.get(offset + 4 + i);
+            }
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -61,4 +77,13 @@ public enum Type {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * @return a Field object of the same type as this object that has contents
+     *         read from the specified position of the buffer. The position of
+     *         the buffer is not changed.
+     * @param buffer The buffer to read from
+     * @param offset The absolute position of the field in the buffer
+     */
+    public abstract Field parse(ByteBuffer buffer, int offset);
+
 }
\ No newline at end of file
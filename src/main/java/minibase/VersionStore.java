@@ -0,0 +1,411 @@
+package minibase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * VersionStore keeps the committed images of pages that snapshot transactions
+ * may still need, so that such a transaction reads every page as it was when
+ * the transaction began without taking any lock.
+ * <p>
+ * Every commit is given a timestamp from a counter, and a snapshot reads as of
+ * the last timestamp given out when it began. When a page is flushed, the
+ * image it had at the last commit is stored as a version that is valid until
+ * the flushing transaction commits; its commit stamps the version with its
+ * timestamp. A snapshot reads the oldest version of a page that was still
+ * valid at its timestamp, or the page's committed image if there is none.
+ * Since the version is stored before the new content of a page reaches the
+ * disk or becomes the page's committed image, a snapshot that looks up the
+ * committed image first and the versions second never misses one.
+ * <p>
+ * A snapshot that may write runs under snapshot isolation: the store also
+ * remembers when each page was last committed, so that a snapshot can check
+ * that no page it is about to write was committed after it began (first
+ * committer wins), and which pages it wrote, which it reads as it left them.
+ * <p>
+ * An optimistic transaction reads a snapshot too, but writes private copies
+ * of pages and remembers the pages it read. At commit it is validated: none
+ * of the pages it read or wrote may have been committed since it began, or be
+ * about to be committed by a transaction validated before it. A page's
+ * version is thus the timestamp of its last commit.
+ * <p>
+ * Versions and commit times no running snapshot can read any more are
+ * dropped whenever a transaction commits or a snapshot ends, so without
+ * snapshots the store holds nothing.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** The end of a version whose overwriter has not committed yet. */
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /** An image of a page that was overwritten at validUntil. */
+    private static class Version {
+        final Page image;
+        /** Guarded by the monitor of the version's chain. */
+        long validUntil = PENDING;
+
+        Version(Page image) {
+            this.image = image;
+        }
+    }
+
+    private static class Snapshot {
+        final long timestamp;
+        final boolean readOnly;
+        /** Pages the snapshot got to write, null if it is read-only. */
+        final Set<PageId> writtenPages;
+        /** Private copies of the pages written, null unless optimistic. */
+        final Map<PageId, Page> privatePages;
+        /** Pages read, null unless optimistic. */
+        final Set<PageId> readPages;
+        /** Whether an optimistic snapshot passed validation; guarded by the store. */
+        boolean validated;
+
+        Snapshot(long timestamp, boolean readOnly, boolean optimistic) {
+            this.timestamp = timestamp;
+            this.readOnly = readOnly;
+            this.writtenPages = readOnly ? null : Collections.synchronizedSet(new HashSet<PageId>());
+            this.privatePages = optimistic ? new ConcurrentHashMap<PageId, Page>() : null;
+            this.readPages = optimistic ? Collections.synchronizedSet(new HashSet<PageId>()) : null;
+        }
+    }
+
+    /** Timestamp of the last commit. */
+    private long lastCommit;
+    private final ConcurrentMap<TransactionId, Snapshot> snapshots;
+    /** Versions by page, oldest first; each list is its own monitor. */
+    private final ConcurrentMap<PageId, List<Version>> chains;
+    private final Map<TransactionId, Map<PageId, Version>> pendingVersions;
+    /** Timestamps of the last commits of pages, while a snapshot predates them. */
+    private final ConcurrentMap<PageId, Long> pageCommits;
+    /** Pages of the validated optimistic transactions that have not committed yet. */
+    private final Map<TransactionId, Set<PageId>> validatedWrites;
+    private int writeConflicts;
+    private int validationFailures;
+
+    public VersionStore() {
+        this.snapshots = new ConcurrentHashMap<TransactionId, Snapshot>();
+        this.chains = new ConcurrentHashMap<PageId, List<Version>>();
+        this.pendingVersions = new HashMap<TransactionId, Map<PageId, Version>>();
+        this.pageCommits = new ConcurrentHashMap<PageId, Long>();
+        this.validatedWrites = new HashMap<TransactionId, Set<PageId>>();
+    }
+
+    /** Starts a read-only snapshot for the transaction as of the last commit. */
+    public void beginSnapshot(TransactionId tid) {
+        beginSnapshot(tid, true);
+    }
+
+    /**
+     * Starts a snapshot for the transaction as of the last commit.
+     *
+     * @param readOnly false to let the snapshot write under snapshot isolation
+     */
+    public synchronized void beginSnapshot(TransactionId tid, boolean readOnly) {
+        snapshots.put(tid, new Snapshot(lastCommit, readOnly, false));
+    }
+
+    /** Starts an optimistic transaction, reading a snapshot as of the last commit. */
+    public synchronized void beginOptimistic(TransactionId tid) {
+        snapshots.put(tid, new Snapshot(lastCommit, false, true));
+    }
+
+    /** @return whether the transaction is a running snapshot. */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /** @return whether the transaction is a running read-only snapshot. */
+    public boolean isReadOnlySnapshot(TransactionId tid) {
+        if (tid == null) {
+            return false;
+        }
+        Snapshot snapshot = snapshots.get(tid);
+        return snapshot != null && snapshot.readOnly;
+    }
+
+    /** @return whether the transaction is a running optimistic transaction. */
+    public boolean isOptimistic(TransactionId tid) {
+        if (tid == null) {
+            return false;
+        }
+        Snapshot snapshot = snapshots.get(tid);
+        return snapshot != null && snapshot.privatePages != null;
+    }
+
+    private Snapshot getSnapshot(TransactionId tid) {
+        Snapshot snapshot = snapshots.get(tid);
+        if (snapshot == null) {
+            throw new IllegalArgumentException(tid + " is not a snapshot.");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Checks that a page a snapshot is about to write was not committed since
+     * the snapshot began, and remembers that the snapshot writes it. Call it
+     * while the snapshot holds the page's write lock, so that no other commit
+     * of the page can come in between.
+     *
+     * @throws TransactionAbortedException if another transaction committed the
+     *           page first
+     * @throws IllegalArgumentException if the snapshot is read-only
+     */
+    public void startWrite(TransactionId tid, PageId pageId) throws TransactionAbortedException {
+        Snapshot snapshot = getSnapshot(tid);
+        if (snapshot.readOnly) {
+            throw new IllegalArgumentException(tid + " is a read-only snapshot.");
+        }
+        if (snapshot.writtenPages.contains(pageId)) {
+            return;
+        }
+        Long pageCommit = pageCommits.get(pageId);
+        if (pageCommit != null && pageCommit > snapshot.timestamp) {
+            synchronized (this) {
+                writeConflicts++;
+            }
+            throw new TransactionAbortedException();
+        }
+        snapshot.writtenPages.add(pageId);
+    }
+
+    /** @return whether the snapshot got to write the page, and so reads its own changes. */
+    public boolean isWritten(TransactionId tid, PageId pageId) {
+        Set<PageId> writtenPages = getSnapshot(tid).writtenPages;
+        return writtenPages != null && writtenPages.contains(pageId);
+    }
+
+    /** @return the number of snapshots aborted because another transaction committed a page first. */
+    public synchronized int getWriteConflictCount() {
+        return writeConflicts;
+    }
+
+    /** Remembers that an optimistic transaction read the page from its snapshot. */
+    public void addRead(TransactionId tid, PageId pageId) {
+        getSnapshot(tid).readPages.add(pageId);
+    }
+
+    /** @return the private copy of the page an optimistic transaction writes, or null. */
+    public Page getPrivatePage(TransactionId tid, PageId pageId) {
+        return getSnapshot(tid).privatePages.get(pageId);
+    }
+
+    public void putPrivatePage(TransactionId tid, PageId pageId, Page page) {
+        getSnapshot(tid).privatePages.put(pageId, page);
+    }
+
+    /** @return the private copies of the pages an optimistic transaction writes. */
+    public Map<PageId, Page> getPrivatePages(TransactionId tid) {
+        return getSnapshot(tid).privatePages;
+    }
+
+    /** @return whether the optimistic transaction passed validation. */
+    public synchronized boolean isValidated(TransactionId tid) {
+        return getSnapshot(tid).validated;
+    }
+
+    /**
+     * Validates an optimistic transaction: checks that no page it read or
+     * wrote was committed since it began, or is about to be by another
+     * validated transaction. The pages it writes count as about to be
+     * committed until the transaction commits or aborts.
+     *
+     * @throws TransactionAbortedException if validation fails
+     */
+    public synchronized void validate(TransactionId tid) throws TransactionAbortedException {
+        Snapshot snapshot = getSnapshot(tid);
+        Set<PageId> pageIds = new HashSet<PageId>(snapshot.privatePages.keySet());
+        synchronized (snapshot.readPages) {
+            pageIds.addAll(snapshot.readPages);
+        }
+        for (PageId pageId : pageIds) {
+            Long pageCommit = pageCommits.get(pageId);
+            if (pageCommit != null && pageCommit > snapshot.timestamp) {
+                throw validationFailed();
+            }
+        }
+        for (Set<PageId> writes : validatedWrites.values()) {
+            for (PageId pageId : writes) {
+                if (pageIds.contains(pageId)) {
+                    throw validationFailed();
+                }
+            }
+        }
+        validatedWrites.put(tid, new HashSet<PageId>(snapshot.privatePages.keySet()));
+        snapshot.validated = true;
+    }
+
+    /** Counts a failed validation, e.g. of a transaction that could not lock a page to install it. */
+    synchronized TransactionAbortedException validationFailed() {
+        validationFailures++;
+        return new TransactionAbortedException();
+    }
+
+    /** @return the number of optimistic transactions that failed validation. */
+    public synchronized int getValidationFailureCount() {
+        return validationFailures;
+    }
+
+    /**
+     * Ends the snapshot of the transaction, if it has one.
+     *
+     * @return false if the transaction was not a snapshot
+     */
+    public synchronized boolean endSnapshot(TransactionId tid) {
+        if (tid == null || snapshots.remove(tid) == null) {
+            return false;
+        }
+        collectGarbage();
+        return true;
+    }
+
+    /** @return the number of running snapshots. */
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /** @return the number of page versions kept for snapshots. */
+    public synchronized int getVersionCount() {
+        int count = 0;
+        for (List<Version> chain : chains.values()) {
+            synchronized (chain) {
+                count += chain.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Records the committed image of a page the transaction is about to write
+     * out. Must be called before the new content of the page reaches the disk.
+     * Only the first image per page and transaction is kept, as it is the one
+     * that was committed.
+     */
+    public synchronized void addVersion(TransactionId tid, PageId pageId, Page committedImage) {
+        Map<PageId, Version> pending = pendingVersions.get(tid);
+        if (pending == null) {
+            pending = new HashMap<PageId, Version>();
+            pendingVersions.put(tid, pending);
+        } else if (pending.containsKey(pageId)) {
+            return;
+        }
+        Version version = new Version(committedImage);
+        pending.put(pageId, version);
+        List<Version> chain = chains.get(pageId);
+        if (chain == null) {
+            chain = new ArrayList<Version>();
+            chains.put(pageId, chain);
+        }
+        synchronized (chain) {
+            chain.add(version);
+        }
+    }
+
+    /**
+     * Stamps the versions the transaction overwrote with a new commit
+     * timestamp. Must be called before the pages' new content becomes their
+     * committed image.
+     */
+    public synchronized void commit(TransactionId tid) {
+        long timestamp = ++lastCommit;
+        validatedWrites.remove(tid);
+        Map<PageId, Version> pending = pendingVersions.remove(tid);
+        if (pending == null) {
+            return;
+        }
+        for (Map.Entry<PageId, Version> entry : pending.entrySet()) {
+            List<Version> chain = chains.get(entry.getKey());
+            synchronized (chain) {
+                entry.getValue().validUntil = timestamp;
+            }
+            pageCommits.put(entry.getKey(), timestamp);
+        }
+        collectGarbage();
+    }
+
+    /**
+     * Drops the versions of an aborting transaction, whose pages go back to
+     * the images the versions hold.
+     */
+    public synchronized void abort(TransactionId tid) {
+        validatedWrites.remove(tid);
+        Map<PageId, Version> pending = pendingVersions.remove(tid);
+        if (pending == null) {
+            return;
+        }
+        for (Map.Entry<PageId, Version> entry : pending.entrySet()) {
+            List<Version> chain = chains.get(entry.getKey());
+            synchronized (chain) {
+                chain.remove(entry.getValue());
+                if (chain.isEmpty()) {
+                    chains.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the image of a page a snapshot has to read instead of the page's
+     * committed image, if any. Look the committed image up first.
+     *
+     * @return the image, or null if the committed image is the one to read
+     * @throws IllegalArgumentException if the transaction is not a snapshot
+     */
+    public Page getVersion(TransactionId tid, PageId pageId) {
+        long snapshot = getSnapshot(tid).timestamp;
+        List<Version> chain = chains.get(pageId);
+        if (chain == null) {
+            return null;
+        }
+        synchronized (chain) {
+            for (Version version : chain) {
+                if (version.validUntil > snapshot) {
+                    return version.image;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the versions that stopped being valid, and the commit times that
+     * lie, before the oldest snapshot began.
+     */
+    private void collectGarbage() {
+        long oldest = lastCommit;
+        for (Snapshot snapshot : snapshots.values()) {
+            oldest = Math.min(oldest, snapshot.timestamp);
+        }
+        Iterator<Long> pageCommitIt = pageCommits.values().iterator();
+        while (pageCommitIt.hasNext()) {
+            if (pageCommitIt.next() <= oldest) {
+                pageCommitIt.remove();
+            }
+        }
+        Iterator<Map.Entry<PageId, List<Version>>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            List<Version> chain = it.next().getValue();
+            synchronized (chain) {
+                Iterator<Version> versions = chain.iterator();
+                while (versions.hasNext()) {
+                    if (versions.next().validUntil <= oldest) {
+                        versions.remove();
+                    }
+                }
+                if (chain.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
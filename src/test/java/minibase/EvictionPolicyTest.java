@@ -0,0 +1,173 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.systemtest.SimpleDbTestBase;
+import minibase.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final EvictionPolicy.EvictionFilter ANY_PAGE = new EvictionPolicy.EvictionFilter() {
+        public boolean canEvict(PageId pageId) {
+            return true;
+        }
+    };
+
+    private PageId p0;
+    private PageId p1;
+    private PageId p2;
+    private PageId p3;
+
+    @Before
+    public void createPageIds() {
+        p0 = new HeapPageId(-1, 0);
+        p1 = new HeapPageId(-1, 1);
+        p2 = new HeapPageId(-1, 2);
+        p3 = new HeapPageId(-1, 3);
+    }
+
+    private static void addAll(EvictionPolicy policy, PageId... pageIds) {
+        for (PageId pageId : pageIds) {
+            policy.pageAdded(pageId);
+        }
+    }
+
+    private static PageId evict(EvictionPolicy policy) {
+        PageId victim = policy.chooseVictim(ANY_PAGE);
+        policy.pageRemoved(victim);
+        return victim;
+    }
+
+    /**
+     * Unit test for LruEvictionPolicy
+     */
+    @Test
+    public void lru() {
+        EvictionPolicy policy = new LruEvictionPolicy();
+        addAll(policy, p0, p1, p2);
+        policy.pageHit(p0);
+        assertEquals(p1, evict(policy));
+        assertEquals(p2, evict(policy));
+        assertEquals(p0, evict(policy));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a referenced page gets a second chance
+     */
+    @Test
+    public void clock() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        addAll(policy, p0, p1, p2);
+        policy.pageHit(p0);
+        assertEquals(p1, evict(policy));
+        policy.pageAdded(p3);
+        policy.pageHit(p2);
+        assertEquals(p0, evict(policy));
+        assertEquals(p3, evict(policy));
+        assertEquals(p2, evict(policy));
+    }
+
+    /**
+     * Unit test for LruKEvictionPolicy: pages referenced once are evicted before
+     * pages referenced twice, regardless of recency
+     */
+    @Test
+    public void lruK() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2, 4);
+        addAll(policy, p0, p1);
+        policy.pageHit(p0);
+        addAll(policy, p2, p3);
+        assertEquals(p1, evict(policy));
+        assertEquals(p2, evict(policy));
+        assertEquals(p3, evict(policy));
+        assertEquals(p0, evict(policy));
+    }
+
+    /**
+     * Unit test for LruKEvictionPolicy: a resident page that is never
+     * referenced again does not keep the history of departed pages growing
+     */
+    @Test
+    public void lruKHistoryIsBounded() {
+        LruKEvictionPolicy policy = new LruKEvictionPolicy(4);
+        policy.pageAdded(p0);
+        for (int i = 0; i < 100000; i++) {
+            PageId pageId = new HeapPageId(-2, i);
+            policy.pageAdded(pageId);
+            policy.pageRemoved(pageId);
+        }
+        assertEquals(1 + 4, policy.getHistorySize());
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a page that comes back while its id
+     * is in A1out is promoted and survives a scan
+     */
+    @Test
+    public void twoQueue() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(1, 4);
+        addAll(policy, p0, p1);
+        assertEquals(p0, evict(policy));
+        policy.pageAdded(p0);
+        addAll(policy, p2, p3);
+        assertEquals(p1, evict(policy));
+        assertEquals(p2, evict(policy));
+        assertEquals(p0, evict(policy));
+        assertEquals(p3, evict(policy));
+    }
+
+    /**
+     * Unit test for EvictionPolicy.chooseVictim() with pages that cannot be
+     * evicted
+     */
+    @Test
+    public void filteredVictims() {
+        EvictionPolicy[] policies = new EvictionPolicy[] { new LruEvictionPolicy(),
+                new ClockEvictionPolicy(), new LruKEvictionPolicy(4), new TwoQueueEvictionPolicy(4) };
+        for (EvictionPolicy policy : policies) {
+            addAll(policy, p0, p1);
+            assertEquals(p1, policy.chooseVictim(new EvictionPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pageId) {
+                    return !pageId.equals(p0);
+                }
+            }));
+            assertNull(policy.chooseVictim(new EvictionPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pageId) {
+                    return false;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Unit test for the hit and miss counters kept by BufferPool's policy
+     */
+    @Test
+    public void hitMissCounters() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(2, new ClockEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        PageId pid0 = new HeapPageId(hf.getId(), 0);
+        PageId pid1 = new HeapPageId(hf.getId(), 1);
+        bp.getPage(tid, pid0, Permissions.READ_ONLY);
+        bp.getPage(tid, pid0, Permissions.READ_ONLY);
+        bp.getPage(tid, pid1, Permissions.READ_ONLY);
+        bp.getPage(tid, pid0, Permissions.READ_ONLY);
+        assertEquals(2, bp.getEvictionPolicy().getHitCount());
+        assertEquals(2, bp.getEvictionPolicy().getMissCount());
+        bp.getEvictionPolicy().resetStatistics();
+        assertEquals(0, bp.getEvictionPolicy().getHitCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,66 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends TestUtil.CreateHeapFile {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    /**
+     * The map is written next to the heap file at a checkpoint and read back
+     * when the file is opened again.
+     */
+    @Test public void survivesReopen() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // commits leave the pages to be written later
+        Database.getBufferPool().flushAllPages();
+        assertFalse(FreeSpaceMap.getSidecarFile(empty.getFile()).exists());
+        Database.getLogFile().logCheckpoint();
+
+        FreeSpaceMap map = new HeapFile(empty.getFile(), Utility.getTupleDesc(2)).getFreeSpaceMap();
+        assertEquals(0, map.getFreeSlots(0));
+        assertEquals(502, map.getFreeSlots(1));
+        assertEquals(1, map.findPageWithFreeSlot());
+    }
+
+    /**
+     * Once the map knows the full pages, an insert reads only the page it
+     * inserts into.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 503 * 3, null, null);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, f.numPages());
+        assertEquals(3, f.getFreeSpaceMap().findPageWithFreeSlot());
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(tid);
+        assertEquals(1, bp.getEvictionPolicy().getMissCount());
+        assertEquals(501, f.getFreeSpaceMap().getFreeSlots(3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
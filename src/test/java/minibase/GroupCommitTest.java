@@ -0,0 +1,89 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import minibase.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int COMMITTERS = 8;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Starts the committers together, each committing the given number of
+     * transactions, and waits for them.
+     */
+    private void commitConcurrently(final int commitsPerCommitter) throws Exception {
+        final LogFile log = Database.getLogFile();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[COMMITTERS];
+        Thread[] committers = new Thread[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; i++) {
+            final int index = i;
+            committers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < commitsPerCommitter; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        start.countDown();
+        for (Thread committer : committers) {
+            committer.join(TIMEOUT_MILLIS);
+            assertFalse(committer.isAlive());
+        }
+        for (Throwable error : errors) {
+            assertNull(error);
+        }
+    }
+
+    @Test public void commitWaitsForForce() throws Exception {
+        GroupCommit groupCommit = Database.getLogFile().getGroupCommit();
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        Database.getLogFile().logCommit(tid);
+        assertEquals(1, groupCommit.getRequestCount());
+        assertEquals(1, groupCommit.getForceCount());
+    }
+
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        GroupCommit groupCommit = Database.getLogFile().getGroupCommit();
+        commitConcurrently(50);
+        assertEquals(COMMITTERS * 50, groupCommit.getRequestCount());
+        // committers that arrive while a force is running share the next one
+        assertTrue(groupCommit.getForceCount() < groupCommit.getRequestCount());
+    }
+
+    @Test public void batchDelayGathersCommitters() throws Exception {
+        GroupCommit groupCommit = Database.getLogFile().getGroupCommit();
+        groupCommit.setMaxBatchDelayMicros(200000);
+        commitConcurrently(1);
+        assertEquals(COMMITTERS, groupCommit.getRequestCount());
+        assertTrue(groupCommit.getForceCount() < COMMITTERS);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
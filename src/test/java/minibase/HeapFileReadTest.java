@@ -6,6 +6,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import junit.framework.JUnit4TestAdapter;
@@ -63,11 +65,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
         HeapPage page = (HeapPage) hf.readPage(pid);
 
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
         assertTrue(page.isSlotUsed(1));
         assertFalse(page.isSlotUsed(20));
     }
 
+    @Test
+    public void readPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        List<Page> pages = threePageFile.readPages(1, 2);
+
+        assertEquals(2, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPageId pid = new HeapPageId(threePageFile.getId(), i + 1);
+            assertEquals(pid, pages.get(i).getId());
+            assertTrue(Arrays.equals(threePageFile.readPage(pid).getPageData(),
+                    pages.get(i).getPageData()));
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null, null);
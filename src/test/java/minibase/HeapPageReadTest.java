@@ -7,6 +7,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import junit.framework.JUnit4TestAdapter;
@@ -43,6 +44,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         try {
             File temp = File.createTempFile("table", ".dat");
             temp.deleteOnExit();
+            FreeSpaceMap.getSidecarFile(temp).deleteOnExit();
             HeapFileEncoder.convert(table, temp, BufferPool.getPageSize(), 2);
             EXAMPLE_DATA = TestUtil.readFileBytes(temp.getAbsolutePath());
         } catch (IOException e) {
@@ -89,13 +91,48 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getField()
+     */
+    @Test
+    public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) page.getField(row, 0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) page.getField(row, 1)).getValue());
+        }
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(List)
+     */
+    @Test
+    public void testFilteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator(Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(40000))));
+
+        int matches = 0;
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] > 30000 && values[1] < 40000) {
+                Tuple tup = it.next();
+                assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+                matches++;
+            }
+        }
+        assertFalse(it.hasNext());
+        assertEquals(6, matches);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
     @Test
     public void getNumEmptySlots() throws Exception {
         HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
     }
 
     /**
@@ -108,7 +145,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         for (int i = 0; i < 20; ++i)
             assertTrue(page.isSlotUsed(i));
 
-        for (int i = 20; i < 504; ++i)
+        for (int i = 20; i < 503; ++i)
             assertFalse(page.isSlotUsed(i));
     }
 
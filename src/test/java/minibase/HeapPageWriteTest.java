@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -56,7 +57,7 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         int free = page.getNumEmptySlots();
 
         // NOTE(ghuo): this nested loop existence check is slow, but it
-        // shouldn't make a difference for n = 504 slots.
+        // shouldn't make a difference for n = 503 slots.
 
         for (int i = 0; i < free; ++i) {
             Tuple addition = Utility.getHeapTuple(i, 2);
@@ -131,6 +132,27 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage() and setBeforeImage()
+     */
+    @Test
+    public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int free = page.getNumEmptySlots();
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        // commit: the before-image is the content as of now, even though it is
+        // only copied on the next write
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertEquals(free - 2, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        assertEquals(free - 1, page.getBeforeImage().getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -29,7 +29,7 @@ public class LockingTest extends TestUtil.CreateHeapFile {
         bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
         // create a new empty HeapFile and populate it with three pages.
-        // we should be able to add 504 tuples on an empty page.
+        // we should be able to add 503 tuples on an empty page.
         TransactionId tid = new TransactionId();
         for (int i = 0; i < 1025; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -192,4 +192,199 @@ public class LockingTest extends TestUtil.CreateHeapFile {
         bp.releasePage(transactionId2, p1);
         bp.getPage(transactionId1, p1, Permissions.READ_WRITE);
     }
+
+    /**
+     * Unit test for BufferPool.getPage() assuming locking.
+     * Locks are granted in request order: a reader that asks after a waiting
+     * writer waits for the writer, and both are woken up as soon as the locks
+     * they wait for are released.
+     */
+    @Test public void waitersAreGrantedInOrder() throws Exception {
+        TransactionId transactionId3 = new TransactionId();
+        bp.getPage(transactionId1, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber writer = new TestUtil.LockGrabber(transactionId2, p0, Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired());
+
+        TestUtil.LockGrabber reader = new TestUtil.LockGrabber(transactionId3, p0, Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.acquired());
+
+        bp.transactionComplete(transactionId1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired());
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.acquired());
+
+        bp.transactionComplete(transactionId2);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired());
+        assertNull(writer.getError());
+        assertNull(reader.getError());
+        bp.transactionComplete(transactionId3);
+    }
+
+    /**
+     * Sets up a deadlock in which the older transaction1 closes the cycle.
+     *
+     * @return the grabbers of transaction2 and transaction1, in that order
+     */
+    private TestUtil.LockGrabber[] deadlock() throws Exception {
+        bp.getPage(transactionId1, p0, Permissions.READ_WRITE);
+        bp.getPage(transactionId2, p1, Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber younger = new TestUtil.LockGrabber(transactionId2, p0, Permissions.READ_WRITE);
+        younger.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(younger.acquired());
+
+        TestUtil.LockGrabber older = new TestUtil.LockGrabber(transactionId1, p1, Permissions.READ_WRITE);
+        older.start();
+        younger.join(TIMEOUT);
+        older.join(TIMEOUT);
+        return new TestUtil.LockGrabber[] { younger, older };
+    }
+
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        assertEquals(LockManager.VictimPolicy.YOUNGEST, bp.getLockManager().getVictimPolicy());
+        TestUtil.LockGrabber[] grabbers = deadlock();
+        assertTrue(grabbers[0].getError() instanceof TransactionAbortedException);
+        assertTrue(grabbers[1].acquired());
+        assertEquals(1, bp.getLockManager().getDeadlockCount());
+        bp.transactionComplete(transactionId1);
+    }
+
+    @Test public void deadlockAbortsRequester() throws Exception {
+        bp.getLockManager().setVictimPolicy(LockManager.VictimPolicy.REQUESTER);
+        TestUtil.LockGrabber[] grabbers = deadlock();
+        assertTrue(grabbers[1].getError() instanceof TransactionAbortedException);
+        assertTrue(grabbers[0].acquired());
+        bp.transactionComplete(transactionId2);
+    }
+
+    @Test public void intentionLocks() throws Exception {
+        bp.getPage(transactionId1, p0, Permissions.READ_ONLY);
+        bp.getPage(transactionId2, p1, Permissions.READ_WRITE);
+        assertEquals(LockMode.IS, bp.getLockManager().getTableLockMode(transactionId1, empty.getId()));
+        assertEquals(LockMode.IX, bp.getLockManager().getTableLockMode(transactionId2, empty.getId()));
+        bp.getPage(transactionId1, p2, Permissions.READ_ONLY);
+        grabLock(transactionId1, p1, Permissions.READ_ONLY, false);
+    }
+
+    @Test public void escalation() throws Exception {
+        LockManager lockManager = bp.getLockManager();
+        lockManager.setEscalationThreshold(2);
+        bp.getPage(transactionId1, p0, Permissions.READ_ONLY);
+        bp.getPage(transactionId1, p1, Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lockManager.getTableLockMode(transactionId1, empty.getId()));
+        bp.getPage(transactionId1, p2, Permissions.READ_ONLY);
+
+        // the page locks were replaced by one lock on the table
+        assertEquals(1, lockManager.getEscalationCount());
+        assertEquals(LockMode.S, lockManager.getTableLockMode(transactionId1, empty.getId()));
+        assertEquals(1, lockManager.getLockTableSize());
+        assertTrue(bp.holdsLock(transactionId1, p0));
+        assertTrue(bp.holdsLock(transactionId1, p2));
+
+        // readers of the table are let in, writers are not
+        grabLock(transactionId2, p1, Permissions.READ_ONLY, true);
+        grabLock(transactionId2, p1, Permissions.READ_WRITE, false);
+    }
+
+    @Test public void escalationDoesNotWait() throws Exception {
+        LockManager lockManager = bp.getLockManager();
+        lockManager.setEscalationThreshold(1);
+        bp.getPage(transactionId2, p2, Permissions.READ_WRITE);
+        bp.getPage(transactionId1, p0, Permissions.READ_ONLY);
+        bp.getPage(transactionId1, p1, Permissions.READ_ONLY);
+
+        // transaction2's IX lock keeps transaction1 from locking the table in S
+        assertEquals(0, lockManager.getEscalationCount());
+        assertEquals(LockMode.IS, lockManager.getTableLockMode(transactionId1, empty.getId()));
+        assertTrue(bp.holdsLock(transactionId1, p1));
+        grabLock(transactionId2, p0, Permissions.READ_WRITE, false);
+    }
+
+    @Test public void commitReleasesManyLocks() throws Exception {
+        LockManager lockManager = bp.getLockManager();
+        int pages = 2 * LockManager.DEFAULT_STRIPES;
+        lockManager.setEscalationThreshold(pages);
+        for (int i = 0; i < pages; i++) {
+            PageId pageId = new HeapPageId(empty.getId(), i);
+            lockManager.acquireReadOnlyLock(transactionId1, pageId);
+            lockManager.acquireReadOnlyLock(transactionId2, pageId);
+        }
+        assertEquals(pages + 1, lockManager.getLockTableSize());
+        lockManager.releasePages(transactionId1);
+        assertEquals(pages + 1, lockManager.getLockTableSize());
+        assertFalse(lockManager.holdsLock(transactionId1, p0));
+        assertTrue(lockManager.holdsLock(transactionId2, p0));
+        lockManager.releasePages(transactionId2);
+        assertEquals(0, lockManager.getLockTableSize());
+    }
+
+    @Test public void manySharers() throws Exception {
+        TransactionId[] readers = new TransactionId[5];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new TransactionId();
+            bp.getPage(readers[i], p0, Permissions.READ_ONLY);
+        }
+        TestUtil.LockGrabber writer = new TestUtil.LockGrabber(transactionId1, p0, Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired());
+        for (TransactionId reader : readers) {
+            bp.transactionComplete(reader);
+        }
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired());
+        assertNull(writer.getError());
+    }
+
+    @Test public void lockTimeout() throws Exception {
+        LockManager lockManager = bp.getLockManager();
+        lockManager.setLockTimeout(TIMEOUT / 2);
+        bp.getPage(transactionId1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber waiter = new TestUtil.LockGrabber(transactionId2, p0, Permissions.READ_ONLY);
+        waiter.start();
+        waiter.join(TIMEOUT * 10);
+        assertFalse(waiter.isAlive());
+        assertFalse(waiter.acquired());
+        assertTrue(waiter.getError() instanceof TransactionAbortedException);
+        assertEquals(1, lockManager.getLockTimeoutCount());
+
+        // the wait was charged to the page and its table
+        assertTrue(lockManager.getPageLockWaitNanos(p0) > 0);
+        assertEquals(0, lockManager.getPageLockWaitNanos(p1));
+        assertEquals(lockManager.getPageLockWaitNanos(p0), lockManager.getTableLockWaitNanos(empty.getId()));
+        assertEquals(p0, lockManager.getHotPages(1).get(0));
+    }
+
+    @Test public void transactionLockTimeout() throws Exception {
+        LockManager lockManager = bp.getLockManager();
+        lockManager.setLockTimeout(TIMEOUT / 2);
+        lockManager.setLockTimeout(transactionId2, LockManager.NO_TIMEOUT);
+        bp.getPage(transactionId1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber waiter = new TestUtil.LockGrabber(transactionId2, p0, Permissions.READ_ONLY);
+        waiter.start();
+        waiter.join(TIMEOUT * 2);
+        assertTrue(waiter.isAlive());
+
+        bp.transactionComplete(transactionId1);
+        waiter.join(TIMEOUT);
+        assertTrue(waiter.acquired());
+        assertEquals(0, lockManager.getLockTimeoutCount());
+        bp.transactionComplete(transactionId2);
+        assertEquals(TIMEOUT / 2, lockManager.getLockTimeout(transactionId2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
 }
@@ -0,0 +1,131 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogFileTest extends TestUtil.CreateHeapFile {
+    private LogFile log;
+    private Page page;
+
+    @Override
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+        page = new HeapPage(new HeapPageId(empty.getId(), 0), HeapPage.createEmptyPageData());
+    }
+
+    @Test public void recordsAreBufferedUntilFlushed() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long lsn = log.logWrite(tid, page, page);
+        assertEquals(LogFile.HEADER_SIZE, log.logFile.length());
+        assertTrue(log.getCurrentLsn() > lsn);
+
+        log.flushUpTo(lsn);
+        assertEquals(log.getCurrentLsn(), getEndOfFileLsn());
+    }
+
+    @Test public void recordsSpanBuffers() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        byte[] ones = new byte[BufferPool.getPageSize()];
+        Arrays.fill(ones, (byte) 0xff);
+        Page full = new HeapPage(page.getId(), ones);
+        long lastLsn = 0;
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 2 * LogFile.DEFAULT_BUFFER_SIZE / pageSize; i++) {
+            // every record changes the whole page back and forth
+            long lsn = log.logWrite(tid, page, i % 2 == 0 ? full : page);
+            assertTrue(lsn > lastLsn);
+            lastLsn = lsn;
+        }
+        assertTrue(log.logFile.length() > LogFile.DEFAULT_BUFFER_SIZE);
+        log.logCommit(tid);
+        assertEquals(log.getCurrentLsn(), getEndOfFileLsn());
+    }
+
+    @Test public void updatesLogChangedBytesOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage after = new HeapPage(page.getId(), HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(1, 2));
+        long lsn = log.getCurrentLsn();
+        log.logWrite(tid, page, after);
+        assertTrue(log.getCurrentLsn() - lsn < BufferPool.getPageSize() / 16);
+    }
+
+    @Test public void insertsLogTupleBytesOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < 10; i++) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        long logBytes = log.getLogBytesWritten(tid);
+        assertTrue(logBytes < 10 * 64);
+
+        // the pages need no update record when they are written
+        Database.getBufferPool().flushPages(tid);
+        assertEquals(logBytes, log.getLogBytesWritten(tid));
+        log.logCommit(tid);
+    }
+
+    @Test public void checkpointKeepsChangesOfDirtyPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        long lsn = log.getCurrentLsn();
+        empty.insertTuple(t.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+
+        // the committed page is not written, so recovery needs its insert
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        Long recoveryLsn = Database.getBufferPool().getDirtyPageTable().get(pid);
+        assertTrue(recoveryLsn != null && recoveryLsn >= lsn);
+        log.logCheckpoint();
+        assertTrue(getEndOfFileLsn() - (log.logFile.length() - LogFile.HEADER_SIZE) <= recoveryLsn);
+
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+    }
+
+    @Test public void lsnsSurviveTruncation() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page, page);
+        log.logCommit(tid);
+        long lsn = log.getCurrentLsn();
+
+        log.logCheckpoint();
+        assertTrue(log.logFile.length() < log.getCurrentLsn());
+        assertTrue(log.getCurrentLsn() > lsn);
+        tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertTrue(log.logWrite(tid, page, page) > lsn);
+        log.logCommit(tid);
+    }
+
+    /** @return the LSN following the last record in the log file */
+    private long getEndOfFileLsn() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(log.logFile, "r");
+        try {
+            file.seek(LogFile.LONG_SIZE);
+            return file.readLong() + file.length() - LogFile.HEADER_SIZE;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
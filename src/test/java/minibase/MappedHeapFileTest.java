@@ -0,0 +1,72 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.systemtest.SimpleDbTestBase;
+import minibase.systemtest.SystemTestUtil;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private File file;
+    private MappedHeapFile mhf;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 1100, 1 << 16, null, tuples);
+        mhf = new MappedHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(mhf);
+    }
+
+    @Test
+    public void sameIdAsHeapFile() throws Exception {
+        assertEquals(new HeapFile(file, Utility.getTupleDesc(2)).getId(), mhf.getId());
+    }
+
+    @Test
+    public void readPage() throws Exception {
+        HeapFile hf = new HeapFile(file, Utility.getTupleDesc(2));
+        assertEquals(hf.numPages(), mhf.numPages());
+        for (int i = 0; i < mhf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(mhf.getId(), i);
+            HeapPage page = (HeapPage) mhf.readPage(pid);
+            assertEquals(pid, page.getId());
+            assertTrue(Arrays.equals(hf.readPage(pid).getPageData(), page.getPageData()));
+        }
+        HeapPage first = (HeapPage) mhf.readPage(new HeapPageId(mhf.getId(), 0));
+        assertTrue(first.isSlotUsed(0));
+        assertEquals(0, first.getNumEmptySlots());
+    }
+
+    @Test
+    public void scan() throws Exception {
+        SystemTestUtil.matchTuples(mhf, tuples);
+    }
+
+    @Test
+    public void readOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        try {
+            mhf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+            fail("expected exception");
+        } catch (DbException e) {
+            // Exception expected but no action necessary.
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
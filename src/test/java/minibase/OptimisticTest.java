@@ -0,0 +1,187 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OptimisticTest extends TestUtil.CreateHeapFile {
+    private PageId p0, p1;
+    private BufferPool bp;
+    private TransactionId tid1, tid2;
+
+    @Override
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // two full pages
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1006; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        this.p1 = new HeapPageId(empty.getId(), 1);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    private int countTuples(TransactionId tid, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        int count = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /** Counts the tuples of the page as a transaction of its own would see them. */
+    private int countCommittedTuples(PageId pid) throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.beginSnapshot(tid);
+        int count = countTuples(tid, pid);
+        bp.transactionComplete(tid);
+        return count;
+    }
+
+    private void deleteFirstTuple(TransactionId tid, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    private void commit(TransactionId tid) throws Exception {
+        bp.flushPages(tid);
+        bp.transactionComplete(tid, true);
+    }
+
+    private void assertValidationFails(TransactionId tid) throws Exception {
+        try {
+            bp.validate(tid);
+            fail("validated a conflicting transaction");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.transactionComplete(tid, false);
+    }
+
+    @Test public void runsWithoutLocks() throws Exception {
+        bp.getPage(tid2, p0, Permissions.READ_WRITE);
+        bp.beginOptimistic(tid1);
+        // would block if the transaction asked for a lock
+        assertEquals(503, countTuples(tid1, p0));
+        deleteFirstTuple(tid1, p1);
+        assertFalse(bp.holdsLock(tid1, p0));
+        assertFalse(bp.holdsLock(tid1, p1));
+        bp.transactionComplete(tid2);
+
+        bp.validate(tid1);
+        commit(tid1);
+        assertEquals(502, countCommittedTuples(p1));
+    }
+
+    @Test public void writesArePrivateUntilCommit() throws Exception {
+        bp.beginOptimistic(tid1);
+        deleteFirstTuple(tid1, p0);
+        assertEquals(502, countTuples(tid1, p0));
+        assertEquals(503, countCommittedTuples(p0));
+        bp.validate(tid1);
+        commit(tid1);
+        assertEquals(502, countCommittedTuples(p0));
+    }
+
+    @Test public void abortDiscardsWrites() throws Exception {
+        bp.beginOptimistic(tid1);
+        deleteFirstTuple(tid1, p0);
+        bp.transactionComplete(tid1, false);
+        assertEquals(503, countCommittedTuples(p0));
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+    }
+
+    @Test public void readCommittedSinceBeginFails() throws Exception {
+        bp.beginOptimistic(tid1);
+        assertEquals(503, countTuples(tid1, p0));
+        deleteFirstTuple(tid1, p1);
+        deleteFirstTuple(tid2, p0);
+        commit(tid2);
+        assertValidationFails(tid1);
+        assertEquals(1, bp.getVersionStore().getValidationFailureCount());
+        assertEquals(503, countCommittedTuples(p1));
+    }
+
+    @Test public void firstValidatedWins() throws Exception {
+        bp.beginOptimistic(tid1);
+        bp.beginOptimistic(tid2);
+        deleteFirstTuple(tid1, p0);
+        deleteFirstTuple(tid2, p0);
+        bp.validate(tid1);
+        // tid1 is validated, but has not committed yet
+        assertValidationFails(tid2);
+        commit(tid1);
+        assertEquals(502, countCommittedTuples(p0));
+    }
+
+    @Test public void writeOfLockedPageFails() throws Exception {
+        assertEquals(503, countTuples(tid2, p0));
+        bp.beginOptimistic(tid1);
+        deleteFirstTuple(tid1, p0);
+        // tid2 holds a read lock on the page
+        assertValidationFails(tid1);
+        assertEquals(503, countTuples(tid2, p0));
+        bp.transactionComplete(tid2);
+    }
+
+    @Test public void disjointTransactionsCommit() throws Exception {
+        bp.beginOptimistic(tid1);
+        bp.beginOptimistic(tid2);
+        assertEquals(503, countTuples(tid1, p0));
+        deleteFirstTuple(tid1, p0);
+        assertEquals(503, countTuples(tid2, p1));
+        deleteFirstTuple(tid2, p1);
+        bp.validate(tid1);
+        bp.validate(tid2);
+        commit(tid2);
+        commit(tid1);
+        assertEquals(502, countCommittedTuples(p0));
+        assertEquals(502, countCommittedTuples(p1));
+        assertEquals(0, bp.getVersionStore().getValidationFailureCount());
+    }
+
+    @Test public void commitValidates() throws Exception {
+        Transaction t1 = new Transaction(Transaction.ConcurrencyControl.OPTIMISTIC);
+        Transaction t2 = new Transaction(Transaction.ConcurrencyControl.OPTIMISTIC);
+        t1.start();
+        t2.start();
+        deleteFirstTuple(t1.getId(), p0);
+        deleteFirstTuple(t2.getId(), p0);
+        t1.commit();
+        try {
+            t2.commit();
+            fail("committed a conflicting transaction");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(502, countCommittedTuples(p0));
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
@@ -0,0 +1,279 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+    private static final int TUPLES = 10;
+
+    private BufferPool bp;
+    private List<Tuple> tuples;
+    private TransactionId tid1, tid2;
+
+    /** Scans the table in a transaction of its own thread. */
+    private class Scanner extends Thread {
+        final TransactionId tid;
+        List<Integer> values;
+        Exception error;
+
+        Scanner(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        @Override
+        public void run() {
+            try {
+                values = scanValues(tid);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    @Override
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < TUPLES; i++) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(tid);
+        assertEquals(1, empty.numPages());
+
+        tid = new TransactionId();
+        tuples = new ArrayList<Tuple>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        bp.transactionComplete(tid);
+
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    private List<Integer> scanValues(TransactionId tid) throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    @Test public void writersOfOnePageDoNotBlock() throws Exception {
+        bp.deleteTuple(tid1, tuples.get(0));
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+        Thread deleter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bp.deleteTuple(tid2, tuples.get(1));
+                    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(101, 2));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        deleter.start();
+        deleter.join(TIMEOUT);
+        assertFalse(deleter.isAlive());
+
+        bp.transactionComplete(tid1);
+        bp.transactionComplete(tid2);
+        TransactionId tid = new TransactionId();
+        List<Integer> values = scanValues(tid);
+        assertEquals(TUPLES, values.size());
+        assertFalse(values.contains(0));
+        assertFalse(values.contains(1));
+        assertTrue(values.contains(100));
+        assertTrue(values.contains(101));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void readerWaitsForWriter() throws Exception {
+        bp.deleteTuple(tid1, tuples.get(0));
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+        Scanner scanner = new Scanner(tid2);
+        scanner.start();
+        scanner.join(TIMEOUT);
+        assertTrue(scanner.isAlive());
+
+        bp.transactionComplete(tid1);
+        scanner.join(TIMEOUT);
+        assertFalse(scanner.isAlive());
+        assertNull(scanner.error);
+        assertEquals(TUPLES, scanner.values.size());
+        assertFalse(scanner.values.contains(0));
+        assertTrue(scanner.values.contains(100));
+        bp.transactionComplete(tid2);
+    }
+
+    @Test public void filteredReaderRechecksChangedRecord() throws Exception {
+        RecordId recordId = tuples.get(3).getRecordId();
+        bp.acquireRecordLock(tid1, recordId, Permissions.READ_WRITE);
+        final List<Integer> values = new ArrayList<Integer>();
+        Thread scanner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    HeapFileIterator it = (HeapFileIterator) empty.iterator(tid2);
+                    it.addPredicate(new Predicate(0, Predicate.Op.EQUALS, new IntField(3)));
+                    it.open();
+                    while (it.hasNext()) {
+                        values.add(((IntField) it.next().getField(0)).getValue());
+                    }
+                    it.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        scanner.start();
+        scanner.join(TIMEOUT);
+        assertTrue(scanner.isAlive());
+
+        // the record the scanner waits for no longer matches once it gets it
+        bp.deleteTuple(tid1, tuples.get(3));
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+        bp.transactionComplete(tid1);
+        scanner.join(TIMEOUT);
+        assertFalse(scanner.isAlive());
+        assertTrue(values.isEmpty());
+        bp.transactionComplete(tid2);
+    }
+
+    @Test public void insertWaitsForSlotOfUncommittedDelete() throws Exception {
+        bp.deleteTuple(tid1, tuples.get(0));
+        Thread inserter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(100, 2));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        inserter.start();
+        inserter.join(TIMEOUT);
+        // the freed slot stays reserved until transaction 1 cannot undo the delete anymore
+        assertTrue(inserter.isAlive());
+
+        bp.transactionComplete(tid1, false);
+        inserter.join(TIMEOUT);
+        assertFalse(inserter.isAlive());
+        bp.transactionComplete(tid2);
+        TransactionId tid = new TransactionId();
+        List<Integer> values = scanValues(tid);
+        assertEquals(TUPLES + 1, values.size());
+        assertTrue(values.contains(0));
+        assertTrue(values.contains(100));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void abortUndoesOwnChangesOnly() throws Exception {
+        bp.deleteTuple(tid1, tuples.get(0));
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+        bp.deleteTuple(tid2, tuples.get(1));
+        // forces the page, with the changes of transaction 1
+        bp.transactionComplete(tid2);
+        bp.transactionComplete(tid1, false);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < TUPLES; i++) {
+            if (i != 1) {
+                expected.add(i);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        assertEquals(expected, scanValues(tid));
+        bp.transactionComplete(tid);
+
+        // the undone page was forced as well
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        assertEquals(expected, scanValues(tid));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void abortRestoresDeletedTupleToItsSlot() throws Exception {
+        RecordId recordId = tuples.get(5).getRecordId();
+        bp.deleteTuple(tid1, tuples.get(5));
+        // frees a slot before the one transaction 1 freed
+        bp.deleteTuple(tid2, tuples.get(2));
+        bp.transactionComplete(tid1, false);
+
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, recordId.getPageId(), Permissions.READ_ONLY);
+        assertTrue(page.isSlotUsed(recordId.tupleno()));
+        assertEquals(5, ((IntField) page.getTuple(recordId.tupleno()).getField(0)).getValue());
+        bp.transactionComplete(tid);
+        bp.transactionComplete(tid2);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < TUPLES; i++) {
+            if (i != 2) {
+                expected.add(i);
+            }
+        }
+        tid = new TransactionId();
+        assertEquals(expected, scanValues(tid));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void abortAfterStealUndoesOwnChangesOnly() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        bp.insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(100, 2));
+        bp.insertTuple(t2.getId(), empty.getId(), Utility.getHeapTuple(200, 2));
+        // steals the page, with the changes of both transactions
+        bp.flushAllPages();
+        t1.commit();
+        t2.transactionComplete(true);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < TUPLES; i++) {
+            expected.add(i);
+        }
+        expected.add(100);
+        TransactionId tid = new TransactionId();
+        assertEquals(expected, scanValues(tid));
+        bp.transactionComplete(tid);
+
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        assertEquals(expected, scanValues(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,221 @@
+package minibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+    private PageId p0, p1;
+    private BufferPool bp;
+    private TransactionId writer, snapshot;
+
+    @Override
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // two full pages
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1006; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        this.p1 = new HeapPageId(empty.getId(), 1);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        writer = new TransactionId();
+        snapshot = new TransactionId();
+    }
+
+    private int countTuples(TransactionId tid, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        int count = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /** Deletes the first tuple of the page. */
+    private void deleteFirstTuple(TransactionId tid, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    private void commit(TransactionId tid) throws Exception {
+        bp.flushPages(tid);
+        bp.transactionComplete(tid, true);
+    }
+
+    @Test public void snapshotDoesNotLock() throws Exception {
+        bp.getPage(writer, p0, Permissions.READ_WRITE);
+        bp.beginSnapshot(snapshot);
+        // would block if the snapshot asked for a lock
+        assertEquals(503, countTuples(snapshot, p0));
+        assertFalse(bp.holdsLock(snapshot, p0));
+        bp.transactionComplete(snapshot);
+        bp.transactionComplete(writer);
+    }
+
+    @Test public void uncommittedChangesAreInvisible() throws Exception {
+        bp.beginSnapshot(snapshot);
+        deleteFirstTuple(writer, p0);
+        assertEquals(503, countTuples(snapshot, p0));
+        bp.transactionComplete(writer, false);
+        assertEquals(503, countTuples(snapshot, p0));
+        bp.transactionComplete(snapshot);
+    }
+
+    @Test public void readsAsOfBegin() throws Exception {
+        bp.beginSnapshot(snapshot);
+        assertEquals(503, countTuples(snapshot, p0));
+        deleteFirstTuple(writer, p0);
+        deleteFirstTuple(writer, p1);
+        commit(writer);
+
+        // the snapshot began before the commit, so it sees neither delete
+        assertEquals(503, countTuples(snapshot, p0));
+        assertEquals(503, countTuples(snapshot, p1));
+        assertEquals(2, bp.getVersionStore().getVersionCount());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(502, countTuples(later, p0));
+        assertEquals(502, countTuples(later, p1));
+
+        TransactionId second = new TransactionId();
+        deleteFirstTuple(second, p1);
+        commit(second);
+        assertEquals(503, countTuples(snapshot, p1));
+        assertEquals(502, countTuples(later, p1));
+
+        bp.transactionComplete(snapshot);
+        // only the version overwritten by the second commit is still needed
+        assertEquals(1, bp.getVersionStore().getVersionCount());
+        bp.transactionComplete(later);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    @Test public void writesAreRejected() throws Exception {
+        bp.beginSnapshot(snapshot);
+        try {
+            bp.getPage(snapshot, p0, Permissions.READ_WRITE);
+            fail("snapshot got a page to write");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(snapshot);
+    }
+
+    @Test public void readOnlyTransaction() throws Exception {
+        Transaction transaction = new Transaction(true);
+        transaction.start();
+        assertEquals(1, bp.getVersionStore().getSnapshotCount());
+        assertEquals(503, countTuples(transaction.getId(), p1));
+        transaction.commit();
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+    }
+
+    @Test public void snapshotIsolationReadsOwnWrites() throws Exception {
+        bp.beginSnapshot(writer, false);
+        deleteFirstTuple(writer, p0);
+        assertEquals(502, countTuples(writer, p0));
+        bp.beginSnapshot(snapshot);
+        assertEquals(503, countTuples(snapshot, p0));
+        commit(writer);
+        assertEquals(503, countTuples(snapshot, p0));
+        bp.transactionComplete(snapshot);
+    }
+
+    @Test public void snapshotIsolationReadsDoNotLock() throws Exception {
+        bp.beginSnapshot(snapshot, false);
+        assertEquals(503, countTuples(snapshot, p0));
+        assertFalse(bp.holdsLock(snapshot, p0));
+        // would block if the snapshot held a read lock
+        deleteFirstTuple(writer, p0);
+        commit(writer);
+        assertEquals(503, countTuples(snapshot, p0));
+        bp.transactionComplete(snapshot);
+    }
+
+    @Test public void disjointWritesCommit() throws Exception {
+        bp.beginSnapshot(writer, false);
+        bp.beginSnapshot(snapshot, false);
+        deleteFirstTuple(writer, p0);
+        deleteFirstTuple(snapshot, p1);
+        commit(writer);
+        commit(snapshot);
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(502, countTuples(reader, p0));
+        assertEquals(502, countTuples(reader, p1));
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.getVersionStore().getWriteConflictCount());
+    }
+
+    @Test public void firstCommitterWins() throws Exception {
+        bp.beginSnapshot(writer, false);
+        bp.beginSnapshot(snapshot, false);
+        assertEquals(503, countTuples(snapshot, p0));
+        deleteFirstTuple(writer, p0);
+        commit(writer);
+        try {
+            deleteFirstTuple(snapshot, p0);
+            fail("snapshot overwrote a page committed after it began");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.transactionComplete(snapshot, false);
+        assertEquals(1, bp.getVersionStore().getWriteConflictCount());
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    @Test public void concurrentWriterWaitsThenAborts() throws Exception {
+        bp.beginSnapshot(writer, false);
+        bp.beginSnapshot(snapshot, false);
+        deleteFirstTuple(writer, p0);
+        final boolean[] aborted = new boolean[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bp.getPage(snapshot, p0, Permissions.READ_WRITE);
+                } catch (TransactionAbortedException e) {
+                    aborted[0] = true;
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join(100);
+        assertTrue(other.isAlive());
+        commit(writer);
+        other.join(100);
+        assertFalse(other.isAlive());
+        assertTrue(aborted[0]);
+        bp.transactionComplete(snapshot, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
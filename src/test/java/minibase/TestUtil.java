@@ -411,6 +411,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.getSidecarFile(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
@@ -0,0 +1,114 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.*;
+
+/**
+ * Fetches pages of a slow HeapFile from many threads at once, and checks that
+ * threads missing on the same page share a single read.
+ */
+public class ConcurrentGetPageTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int PAGES = 8;
+
+    /** Counts the number of readPage operations, and makes each one slow. */
+    private static class SlowHeapFile extends HeapFile {
+        private final AtomicInteger readCount = new AtomicInteger(0);
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+//        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile table;
+
+    @Before
+    public void createTable() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 991 * PAGES, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        table = new SlowHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private Page[] fetchConcurrently(final PageId[] pageIds) throws Exception {
+        final Page[] pages = new Page[pageIds.length];
+        final Throwable[] errors = new Throwable[pageIds.length];
+        Thread[] threads = new Thread[pageIds.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        pages[index] = Database.getBufferPool().getPage(new TransactionId(),
+                                pageIds[index], Permissions.READ_ONLY);
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable error : errors) {
+            assertNull(error);
+        }
+        return pages;
+    }
+
+    @Test public void testMissesOnSamePageShareOneRead() throws Exception {
+        PageId[] pageIds = new PageId[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            pageIds[i] = new HeapPageId(table.getId(), 0);
+        }
+        Page[] pages = fetchConcurrently(pageIds);
+        assertEquals(1, table.readCount.get());
+        for (Page page : pages) {
+            assertSame(pages[0], page);
+        }
+    }
+
+    @Test public void testMissesOnDifferentPages() throws Exception {
+        PageId[] pageIds = new PageId[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            pageIds[i] = new HeapPageId(table.getId(), i);
+        }
+        Page[] pages = fetchConcurrently(pageIds);
+        assertEquals(PAGES, table.readCount.get());
+        for (int i = 0; i < PAGES; i++) {
+            assertEquals(pageIds[i], pages[i].getId());
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ConcurrentGetPageTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.*;
+
+/**
+ * Runs a DeadlockTest style workload, in which transactions read two pages and
+ * then upgrade their locks to write them, from several threads under each
+ * {@link LockManager.DeadlockPolicy}. Checks that every transaction commits in
+ * the end, retrying the aborted ones, and prints how long each policy took and
+ * how many transactions it aborted.
+ */
+public class DeadlockPolicyTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int TRANSACTIONS_PER_THREAD = 50;
+    private static final int PAGES = 3;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private HeapPageId[] pageIds;
+
+    @Before
+    public void createTable() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 503 * PAGES, null, null);
+        assertEquals(PAGES, f.numPages());
+        pageIds = new HeapPageId[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            pageIds[i] = new HeapPageId(f.getId(), i);
+        }
+    }
+
+    private void runWorkload(LockManager.DeadlockPolicy policy) throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.getLockManager().setDeadlockPolicy(policy);
+        final AtomicInteger commits = new AtomicInteger(0);
+        final AtomicInteger aborts = new AtomicInteger(0);
+        final Throwable[] errors = new Throwable[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    try {
+                        for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                            PageId first = pageIds[random.nextInt(PAGES)];
+                            PageId second = pageIds[random.nextInt(PAGES)];
+                            while (true) {
+                                TransactionId tid = new TransactionId();
+                                try {
+                                    bp.getPage(tid, first, Permissions.READ_ONLY);
+                                    bp.getPage(tid, second, Permissions.READ_ONLY);
+                                    bp.getPage(tid, first, Permissions.READ_WRITE);
+                                    bp.getPage(tid, second, Permissions.READ_WRITE);
+                                    bp.transactionComplete(tid, true);
+                                    commits.incrementAndGet();
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    aborts.incrementAndGet();
+                                    bp.transactionComplete(tid, false);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MILLIS);
+            assertFalse("workload did not finish under " + policy, thread.isAlive());
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        for (Throwable error : errors) {
+            assertNull(error);
+        }
+        assertEquals(THREADS * TRANSACTIONS_PER_THREAD, commits.get());
+        System.out.println(policy + ": " + commits.get() + " commits, " + aborts.get() + " aborts, "
+                + bp.getLockManager().getLockWaitCount() + " lock waits in " + millis + " ms");
+    }
+
+    @Test public void testDetect() throws Exception {
+        runWorkload(LockManager.DeadlockPolicy.DETECT);
+    }
+
+    @Test public void testWaitDie() throws Exception {
+        runWorkload(LockManager.DeadlockPolicy.WAIT_DIE);
+    }
+
+    @Test public void testWoundWait() throws Exception {
+        runWorkload(LockManager.DeadlockPolicy.WOUND_WAIT);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(DeadlockPolicyTest.class);
+    }
+}
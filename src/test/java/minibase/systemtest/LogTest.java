@@ -11,6 +11,7 @@ import org.junit.Test;
 
 import minibase.Database;
 import minibase.DbException;
+import minibase.FreeSpaceMap;
 import minibase.HeapFile;
 import minibase.HeapPage;
 import minibase.HeapPageId;
@@ -21,6 +22,7 @@ import minibase.Permissions;
 import minibase.SeqScan;
 import minibase.Transaction;
 import minibase.TransactionAbortedException;
+import minibase.TransactionId;
 import minibase.Tuple;
 import minibase.TupleDesc;
 import minibase.TupleIterator;
@@ -137,8 +139,10 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        FreeSpaceMap.getSidecarFile(file1).delete();
         file2 = new File("simple2.db");
         file2.delete();
+        FreeSpaceMap.getSidecarFile(file2).delete();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
@@ -224,6 +228,32 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test
+    public void TestBufferPoolAbortCrash() throws IOException, DbException,
+            TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a transaction that logged no BEGIN inserts, its page is stolen,
+        // and the buffer pool aborts it; crash and recover: its data should
+        // not come back
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf1.getId(), Utility.getHeapTuple(new int[] { 5, 0 }));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
     @Test
     public void TestAbortCommitInterleaved() throws IOException, DbException,
             TransactionAbortedException {
@@ -444,4 +474,163 @@ public class LogTest extends SimpleDbTestBase {
         look(hf2, t, 29, false);
         t.commit();
     }
+
+    @Test
+    public void TestCommitWritesNoPages() throws IOException, DbException,
+            TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // a commit only forces the log; the page is written later
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 30, 0);
+        t.commit();
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertFalse(onDisk.iterator().hasNext());
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 30, true);
+        t.commit();
+    }
+
+    @Test
+    public void TestBigTransactionCommitCrash() throws IOException, DbException,
+            TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a transaction that dirties more pages than the buffer pool holds
+        // commits, crash: its data should be there
+
+        Database.resetBufferPool(3);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 5 * 503; i++) {
+            insertRow(hf1, t, 1000 + i, 0);
+        }
+        t.commit();
+        assertEquals(6, hf1.numPages());
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 1000, true);
+        look(hf1, t, 1000 + 5 * 503 - 1, true);
+        t.commit();
+    }
+
+    @Test
+    public void TestBigTransactionAbortCrash() throws IOException, DbException,
+            TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a transaction that dirties more pages than the buffer pool holds
+        // aborts, its compensation records are redone after a crash, and
+        // recovering twice changes nothing
+
+        Database.resetBufferPool(3);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3 * 503; i++) {
+            insertRow(hf1, t, 1000 + i, 0);
+        }
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1000, false);
+        t.commit();
+
+        crash();
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 1000, false);
+        look(hf1, t, 1000 + 3 * 503 - 1, false);
+        t.commit();
+    }
+
+    @Test
+    public void TestOpenInterleavedCrash() throws IOException, DbException,
+            TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // two transactions insert into the same page under record locking,
+        // interleaved with one that commits, and do not commit; the page is
+        // stolen, crash: only the committed data should be there
+
+        Database.getBufferPool().setRecordLocking(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t1, 8, 0);
+        insertRow(hf1, t2, 9, 0);
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 10, 0);
+        t3.commit();
+        insertRow(hf1, t1, 11, 0);
+        insertRow(hf1, t2, 12, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 8, false);
+        look(hf1, t, 9, false);
+        look(hf1, t, 10, true);
+        look(hf1, t, 11, false);
+        look(hf1, t, 12, false);
+        t.commit();
+    }
+
+    @Test
+    public void TestOpenStolenCrash() throws IOException, DbException,
+            TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a transaction whose pages were stolen from a small buffer pool
+        // does not commit, crash: its data should not be there, and a
+        // transaction committed meanwhile should
+
+        Database.resetBufferPool(3);
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 2 * 503; i++) {
+            insertRow(hf1, t1, 1000 + i, 0);
+        }
+        doInsert(hf2, 31, 32);
+        Database.getLogFile().logCheckpoint();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 1000, false);
+        look(hf1, t, 1000 + 2 * 503 - 1, false);
+        look(hf2, t, 31, true);
+        look(hf2, t, 32, true);
+        t.commit();
+    }
 }
\ No newline at end of file
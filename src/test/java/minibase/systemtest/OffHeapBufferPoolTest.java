@@ -0,0 +1,82 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import minibase.*;
+
+/**
+ * Runs scans and transactions against a BufferPool that keeps its pages in a
+ * FrameArena, and checks that the pages survive being dropped and decoded
+ * again, and that the cache does not grow the heap.
+ */
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+    private static final long MEMORY_LIMIT_IN_MB = 8;
+    private static final int TABLE_PAGES = 300;
+    private static final int BUFFER_PAGES = 400;
+
+    @Test public void testCachedScanStaysOffHeap() throws IOException, DbException,
+            TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 503 * TABLE_PAGES, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, new LruEvictionPolicy(), true);
+        assertTrue(bp.isOffHeap());
+
+        long beginMem = SystemTestUtil.getMemoryFootprint();
+        SystemTestUtil.matchTuples(f, tuples);
+        long memDiff = (SystemTestUtil.getMemoryFootprint() - beginMem) / (1 << 20);
+        if (memDiff > MEMORY_LIMIT_IN_MB) {
+            Assert.fail("Cached pages took " + memDiff + " MB of heap, when limit was " + MEMORY_LIMIT_IN_MB);
+        }
+
+        // the whole table is cached, so the second scan decodes every page
+        // from the arena again
+        long misses = bp.getEvictionPolicy().getMissCount();
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(misses, bp.getEvictionPolicy().getMissCount());
+    }
+
+    @Test public void testEvictionReusesFrames() throws IOException, DbException,
+            TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 503 * 10, null, tuples);
+        Database.resetBufferPool(4, new LruEvictionPolicy(), true);
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    @Test public void testAbortRestoresFrame() throws IOException, DbException,
+            TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.resetBufferPool(BUFFER_PAGES, new LruEvictionPolicy(), true);
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        EvictionTest.insertRow(f, t);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.*;
+
+/**
+ * Compares optimistic transactions with two-phase locking at different levels
+ * of contention. Each transaction reads one page and moves a tuple within
+ * another, both picked at random from a set of hot pages; the fewer hot pages,
+ * the more the transactions conflict. Checks that all transactions commit in
+ * the end, retrying aborted ones, and that no tuple was lost, and prints the
+ * throughput and aborts of each run.
+ */
+public class OptimisticConcurrencyTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int TRANSACTIONS_PER_THREAD = 100;
+    private static final int PAGES = 16;
+    private static final int ROWS = 503 * PAGES;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private HeapFile f;
+
+    @Before
+    public void createTable() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        assertEquals(PAGES, f.numPages());
+    }
+
+    /** Moves the first tuple of the page to the end of it. */
+    private static void moveTuple(BufferPool bp, TransactionId tid, PageId pageId) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pageId, Permissions.READ_WRITE);
+        synchronized (page) {
+            Tuple tuple = page.iterator().next();
+            page.deleteTuple(tuple);
+            page.insertTuple(tuple);
+            page.markDirty(true, tid);
+        }
+    }
+
+    private void runWorkload(final boolean optimistic, final int hotPages) throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final AtomicInteger commits = new AtomicInteger(0);
+        final AtomicInteger aborts = new AtomicInteger(0);
+        final Throwable[] errors = new Throwable[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    try {
+                        for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                            PageId read = new HeapPageId(f.getId(), random.nextInt(hotPages));
+                            PageId written = new HeapPageId(f.getId(), random.nextInt(hotPages));
+                            while (true) {
+                                TransactionId tid = new TransactionId();
+                                if (optimistic) {
+                                    bp.beginOptimistic(tid);
+                                }
+                                try {
+                                    bp.getPage(tid, read, Permissions.READ_ONLY);
+                                    moveTuple(bp, tid, written);
+                                    if (optimistic) {
+                                        bp.validate(tid);
+                                    }
+                                    bp.transactionComplete(tid, true);
+                                    commits.incrementAndGet();
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    aborts.incrementAndGet();
+                                    bp.transactionComplete(tid, false);
+                                    // back off, so as not to run into the same
+                                    // transaction again
+                                    Thread.sleep(random.nextInt(2));
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MILLIS);
+            assertFalse("workload did not finish", thread.isAlive());
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        for (Throwable error : errors) {
+            assertNull(error);
+        }
+        assertEquals(THREADS * TRANSACTIONS_PER_THREAD, commits.get());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        int rows = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            rows++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(ROWS, rows);
+        System.out.println((optimistic ? "optimistic" : "locking") + ", " + hotPages + " hot pages: "
+                + commits.get() * 1000L / millis + " commits/s, " + aborts.get() + " aborts");
+    }
+
+    @Test public void testHighContention() throws Exception {
+        runWorkload(false, 2);
+        runWorkload(true, 2);
+    }
+
+    @Test public void testMediumContention() throws Exception {
+        runWorkload(false, 4);
+        runWorkload(true, 4);
+    }
+
+    @Test public void testLowContention() throws Exception {
+        runWorkload(false, PAGES);
+        runWorkload(true, PAGES);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OptimisticConcurrencyTest.class);
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import minibase.BufferPool;
 import minibase.Database;
+import minibase.FreeSpaceMap;
 import minibase.HeapFile;
 import minibase.HeapFileEncoder;
 import minibase.Parser;
@@ -34,6 +35,7 @@ public class QueryTest {
                                                    String colPrefix) throws IOException {
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        FreeSpaceMap.getSidecarFile(temp).deleteOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return Utility.openHeapFile(columns, colPrefix, temp);
     }
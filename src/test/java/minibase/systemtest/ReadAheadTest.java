@@ -0,0 +1,70 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import minibase.*;
+
+/**
+ * Reads the first pages of a table in order and checks that the following
+ * pages are read into the buffer pool in the background.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        private final AtomicInteger readCount = new AtomicInteger(0);
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+//        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount.incrementAndGet();
+            return super.readPage(pid);
+        }
+    }
+
+    @Test public void testSequentialAccessReadsAhead() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 991 * PAGES, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+
+        int sequentialPages = ReadAhead.MIN_SEQUENTIAL_RUN + 1;
+        for (int i = 0; i < sequentialPages; i++) {
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        int expectedReads = sequentialPages + ReadAhead.INITIAL_WINDOW;
+        assertTrue(bp.getReadAhead().awaitIdle(TIMEOUT_MILLIS));
+        assertEquals(expectedReads, table.readCount.get());
+
+        long hits = bp.getEvictionPolicy().getHitCount();
+        bp.getPage(tid, new HeapPageId(table.getId(), sequentialPages), Permissions.READ_ONLY);
+        assertEquals(hits + 1, bp.getEvictionPolicy().getHitCount());
+
+        // the hit continues the run, so the window doubles and the pages past
+        // the first window are read ahead in the background; the page hit is
+        // not read again
+        expectedReads = sequentialPages + 2 * ReadAhead.INITIAL_WINDOW + 1;
+        assertTrue(bp.getReadAhead().awaitIdle(TIMEOUT_MILLIS));
+        assertEquals(expectedReads, table.readCount.get());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,55 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import minibase.*;
+
+/**
+ * Scans a table much larger than the buffer pool while a page of another table
+ * is cached, and checks that the scan recycled its own frames instead of
+ * evicting that page.
+ */
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 16;
+
+    @Test public void testScanDoesNotEvictWorkingSet() throws IOException, DbException,
+            TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 503 * 100, null, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        TransactionId tid = new TransactionId();
+        PageId hotPageId = new HeapPageId(hot.getId(), 0);
+        bp.getPage(tid, hotPageId, Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(503 * 100, count);
+
+        long hits = bp.getEvictionPolicy().getHitCount();
+        bp.getPage(tid, hotPageId, Permissions.READ_ONLY);
+        assertEquals(hits + 1, bp.getEvictionPolicy().getHitCount());
+    }
+
+    @Test public void testSmallTablesUseSharedPool() {
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        assertNull(bp.createScanRing(BUFFER_PAGES - 1));
+        assertNotNull(bp.createScanRing(BUFFER_PAGES));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
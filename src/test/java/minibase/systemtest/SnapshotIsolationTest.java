@@ -0,0 +1,160 @@
+package minibase.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import minibase.*;
+
+/**
+ * Runs writers that each move a tuple, deleting it and inserting it again,
+ * next to readers that count the tuples of the table, once with every
+ * transaction locking pages and once with the readers reading snapshots and
+ * the writers running under snapshot isolation. Checks that every reader saw
+ * all tuples, i.e. a consistent state, and prints how many scans and moves
+ * each mode completed and how many transactions it aborted.
+ */
+public class SnapshotIsolationTest extends SimpleDbTestBase {
+    private static final int WRITERS = 2;
+    private static final int READERS = 2;
+    private static final int MOVES_PER_WRITER = 50;
+    private static final int SCANS_PER_READER = 20;
+    private static final int PAGES = 4;
+    private static final int ROWS = 503 * PAGES;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private HeapFile f;
+
+    @Before
+    public void createTable() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        assertEquals(PAGES, f.numPages());
+    }
+
+    private static int countTuples(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private void runWorkload(final boolean snapshots) throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final AtomicInteger aborts = new AtomicInteger(0);
+        final Throwable[] errors = new Throwable[WRITERS + READERS];
+        Thread[] threads = new Thread[WRITERS + READERS];
+        for (int i = 0; i < WRITERS; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    try {
+                        for (int j = 0; j < MOVES_PER_WRITER; j++) {
+                            PageId pageId = new HeapPageId(f.getId(), random.nextInt(PAGES));
+                            while (true) {
+                                TransactionId tid = new TransactionId();
+                                if (snapshots) {
+                                    bp.beginSnapshot(tid, false);
+                                }
+                                try {
+                                    HeapPage page = (HeapPage) bp.getPage(tid, pageId, Permissions.READ_WRITE);
+                                    Tuple tuple = page.iterator().next();
+                                    bp.deleteTuple(tid, tuple);
+                                    bp.insertTuple(tid, f.getId(), tuple);
+                                    bp.transactionComplete(tid, true);
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    aborts.incrementAndGet();
+                                    bp.transactionComplete(tid, false);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+        }
+        final AtomicInteger[] counts = new AtomicInteger[READERS];
+        for (int i = 0; i < READERS; i++) {
+            final int index = WRITERS + i;
+            final AtomicInteger wrongCounts = new AtomicInteger(0);
+            counts[i] = wrongCounts;
+            threads[index] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < SCANS_PER_READER; j++) {
+                            while (true) {
+                                TransactionId tid = new TransactionId();
+                                if (snapshots) {
+                                    bp.beginSnapshot(tid);
+                                }
+                                try {
+                                    if (countTuples(f, tid) != ROWS) {
+                                        wrongCounts.incrementAndGet();
+                                    }
+                                    bp.transactionComplete(tid, true);
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    aborts.incrementAndGet();
+                                    bp.transactionComplete(tid, false);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MILLIS);
+            assertFalse("workload did not finish", thread.isAlive());
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        for (Throwable error : errors) {
+            assertNull(error);
+        }
+        for (AtomicInteger wrongCounts : counts) {
+            assertEquals(0, wrongCounts.get());
+        }
+        TransactionId tid = new TransactionId();
+        assertEquals(ROWS, countTuples(f, tid));
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        System.out.println((snapshots ? "snapshot isolation" : "locking") + ": "
+                + READERS * SCANS_PER_READER + " scans and " + WRITERS * MOVES_PER_WRITER + " moves, "
+                + aborts.get() + " aborts (" + bp.getVersionStore().getWriteConflictCount()
+                + " write conflicts) in " + millis + " ms");
+    }
+
+    @Test public void testLocking() throws Exception {
+        runWorkload(false);
+    }
+
+    @Test public void testSnapshotIsolation() throws Exception {
+        runWorkload(true);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
@@ -67,6 +67,7 @@ public class SystemTestUtil {
         // Convert the tuples list to a heap file and open it
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        FreeSpaceMap.getSidecarFile(temp).deleteOnExit();
         HeapFileEncoder.convert(generatedTuples, temp, BufferPool.getPageSize(), columns);
 
         if (tuples != null) {